@@ -1,18 +1,27 @@
 package com.gigamonkeys.bhs;
 
+import com.gigamonkeys.bhs.testing.ClassInfo;
+import com.gigamonkeys.bhs.testing.Events;
+import com.gigamonkeys.bhs.testing.Parallel;
+import com.gigamonkeys.bhs.testing.ResultWriter;
 import com.gigamonkeys.bhs.testing.Testable;
 import com.gigamonkeys.bhs.testing.Tester;
 import com.gigamonkeys.bhs.testing.TestResult;
+import com.gigamonkeys.bhs.testing.Watchdog;
 import com.google.gson.Gson;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.Proxy;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
 
 /*
  * A test runner that basically lets a test class exercise an instance of the
@@ -51,12 +60,34 @@ public class BespokeTestRunner {
   }
 
   private static Tester loadTester(String name) throws Exception {
+    // The tester decides what class it tests so the submission goes by the
+    // tester's name.
+    Events.startSubmission(name, name);
     var testerClass = (Class<Tester>) Class.forName(name);
     return testerClass.getConstructor(new Class[0]).newInstance();
   }
 
+  private static final Object[] NO_ARGS = new Object[0];
+
+  private static final MethodType INVOKER_TYPE =
+      MethodType.methodType(Object.class, Object.class, Object[].class);
+
+  // Tables mapping the methods of a test interface to handles for the
+  // corresponding methods of the class being tested, built once per
+  // (interface, class) pair rather than looked up on every proxied call. They
+  // hang off the tested class via a ClassValue so they don't keep student
+  // classes from being unloaded.
+  private static final ClassValue<Map<Class<?>, Map<Method, MethodHandle>>> DISPATCH_TABLES =
+      new ClassValue<>() {
+        @Override
+        protected Map<Class<?>, Map<Method, MethodHandle>> computeValue(Class<?> clazz) {
+          return new ConcurrentHashMap<>();
+        }
+      };
+
   @SuppressWarnings("unchecked")
   public static <T> T getProxy(Class<T> clazz, Object testObject) {
+    var table = dispatchTable(clazz, testObject.getClass());
     // Argh. This is so gross!
     return (T)
         Proxy.newProxyInstance(
@@ -64,44 +95,111 @@ public class BespokeTestRunner {
             new Class<?>[] {clazz},
             new InvocationHandler() {
               public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-                // The .get() should be safe here because the only methods we should
-                // try to invoke via the proxy are ones that we identified with
-                // methodToTest in the first place.
-                return methodToTest(method, testObject).get().invoke(testObject, args);
+                MethodHandle h = table.get(method);
+                if (h != null) {
+                  Object[] actualArgs = args == null ? NO_ARGS : args;
+                  // Wrap whatever the student code throws the same way
+                  // Method.invoke would so testers see the usual
+                  // UndeclaredThrowableException wrapping an
+                  // InvocationTargetException. TimedOut and
+                  // Governor.LimitExceeded come from the Watchdog and go back
+                  // to the tester unwrapped.
+                  return Watchdog.call(
+                      () -> {
+                        try {
+                          return (Object) h.invokeExact(testObject, actualArgs);
+                        } catch (Throwable t) {
+                          throw new InvocationTargetException(t);
+                        }
+                      });
+                } else if (method.getDeclaringClass() == Object.class) {
+                  // toString, equals, hashCode
+                  return method.invoke(testObject, args);
+                } else {
+                  // Testers should only invoke methods we found with
+                  // methodToTest in the first place.
+                  throw new UnsupportedOperationException(
+                      "No method " + method.getName() + " in " + testObject.getClass().getName());
+                }
+              }
+            });
+  }
+
+  private static Map<Method, MethodHandle> dispatchTable(Class<?> iface, Class<?> clazz) {
+    return DISPATCH_TABLES
+        .get(clazz)
+        .computeIfAbsent(
+            iface,
+            i -> {
+              var table = new HashMap<Method, MethodHandle>();
+              for (Method m : i.getMethods()) {
+                methodToTest(m, clazz).ifPresent(target -> table.put(m, invoker(target)));
               }
+              return table;
             });
   }
 
-  private static Optional<Method> methodToTest(Method m, Object testObject) {
+  private static Optional<Method> methodToTest(Method m, Class<?> clazz) {
+    return Optional.ofNullable(ClassInfo.of(clazz).method(m.getName(), m.getParameterTypes()));
+  }
+
+  // Handle taking the object to invoke on and the args as an Object[].
+  private static MethodHandle invoker(Method m) {
     try {
-      return Optional.of(
-          testObject.getClass().getDeclaredMethod(m.getName(), m.getParameterTypes()));
-    } catch (NoSuchMethodException | SecurityException e) {
-      return Optional.empty();
+      MethodHandle h =
+          MethodHandles.lookup()
+              .unreflect(m)
+              .asSpreader(Object[].class, m.getParameterCount());
+      if (Modifier.isStatic(m.getModifiers())) {
+        h = MethodHandles.dropArguments(h, 0, Object.class);
+      }
+      return h.asType(INVOKER_TYPE);
+    } catch (IllegalAccessException iae) {
+      throw new Error(iae);
     }
   }
 
   private Map<String, TestResult[]> results() throws Exception {
     var allResults = new HashMap<String, TestResult[]>();
-    for (Testable t : tester.testables()) {
-      allResults.put(
-          t.name(),
-          Arrays.stream(t.results()).collect(Collectors.toList()).toArray(new TestResult[0]));
-    }
+    Parallel.forEachOrdered(
+        Events.testables(tester),
+        Testable::concurrent,
+        Testable::results,
+        (t, results) -> allResults.put(t.name(), results));
     return allResults;
   }
 
   public String resultsAsJson() throws Exception {
-    return gson.toJson(results());
+    var results = results();
+    var event = new Events.ToJson();
+    event.begin();
+    String json = gson.toJson(results);
+    event.characters = json.length();
+    event.finish();
+    return json;
   }
 
   public void outputResults() throws Exception {
     System.out.println(resultsAsJson());
   }
 
+  /**
+   * Write results as newline-delimited JSON, one line per Testable as soon as
+   * it's done.
+   */
+  public void streamResults(ResultWriter out) throws Exception {
+    Parallel.forEachOrdered(
+        Events.testables(tester), Testable::concurrent, Testable::results, (t, results) -> out.write(t.name(), results));
+  }
+
   public static void main(String[] args) {
+    Watchdog.defaultTimeoutMillis(Watchdog.SERVER_TIMEOUT_MILLIS);
     try {
-      new BespokeTestRunner(args[0]).outputResults();
+      if (args[0].equals("--stream")) {
+        new BespokeTestRunner(args[1]).streamResults(new ResultWriter(System.out));
+      } else {
+        new BespokeTestRunner(args[0]).outputResults();
+      }
     } catch (Exception e) {
       System.err.println("Exception while running tests.");
       e.printStackTrace(System.err);
@@ -1,21 +1,35 @@
 package com.gigamonkeys.bhs;
 
+import com.gigamonkeys.bhs.testing.ClassInfo;
+import com.gigamonkeys.bhs.testing.Cost;
+import com.gigamonkeys.bhs.testing.Equivalence;
+import com.gigamonkeys.bhs.testing.Events;
+import com.gigamonkeys.bhs.testing.Governor;
+import com.gigamonkeys.bhs.testing.Meter;
+import com.gigamonkeys.bhs.testing.ResultWriter;
+import com.gigamonkeys.bhs.testing.Snapshot;
+import com.gigamonkeys.bhs.testing.TestResult.Outcome;
+import com.gigamonkeys.bhs.testing.Utils;
+import com.gigamonkeys.bhs.testing.Watchdog;
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
+import com.google.gson.TypeAdapter;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Type;
+import java.lang.reflect.UndeclaredThrowableException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Optional;
 import java.util.stream.Collectors;
 
@@ -26,7 +40,7 @@ import java.util.stream.Collectors;
  * the two classes and the path to the test case file or can instantiate one and
  * call outputResults()
  */
-public class TestRunner {
+public final class TestRunner {
 
   // For pretty-printed JSON use new GsonBuilder().setPrettyPrinting().create() instead of new
   // Gson();
@@ -38,20 +52,31 @@ public class TestRunner {
   private final Object testObject;
   private final Object referenceObject;
   private final List<Method> referenceMethods;
-  private final Map<String, TestCase[]> allTestCases;
+  private final List<Testable> testables;
 
   public TestRunner(String testClassName, String referenceClassName, String testCasesFile)
       throws Exception {
+    // Converted to Java values up front so we don't hang onto the JSON.
+    this(
+        testClassName,
+        referenceClassName,
+        gson.<Map<String, TestCase[]>>fromJson(
+            Files.readString(Paths.get(testCasesFile)), TEST_CASES_TYPE));
+  }
+
+  private TestRunner(
+      String testClassName, String referenceClassName, Map<String, TestCase[]> allTestCases)
+      throws Exception {
+    Events.startSubmission(testClassName, referenceClassName);
     this.testClass = Class.forName(testClassName);
     this.referenceClass = Class.forName(referenceClassName);
     this.testObject = testClass.getConstructor(new Class[0]).newInstance();
     this.referenceObject = referenceClass.getConstructor(new Class[0]).newInstance();
-    this.allTestCases = gson.fromJson(Files.readString(Paths.get(testCasesFile)), TEST_CASES_TYPE);
-
     this.referenceMethods =
         Arrays.stream(referenceClass.getDeclaredMethods())
             .filter(method -> Modifier.isPublic(method.getModifiers()))
             .collect(Collectors.toList());
+    this.testables = testables(allTestCases);
   }
 
   /*
@@ -60,10 +85,32 @@ public class TestRunner {
    */
   static record TestCase(JsonElement[] args) {
     public Object[] argsFor(Method m) {
+      return new Converter(m).convert(this);
+    }
+  }
+
+  /*
+   * Converts the JSON arguments of test cases to arguments for a particular
+   * method. Looks up the Gson adapter for each parameter once rather than once
+   * per argument of every case.
+   */
+  static class Converter {
+
+    private final TypeAdapter<?>[] adapters;
+
+    Converter(Method m) {
       var types = m.getParameterTypes();
+      this.adapters = new TypeAdapter<?>[types.length];
+      for (var i = 0; i < types.length; i++) {
+        adapters[i] = gson.getAdapter(types[i]);
+      }
+    }
+
+    public Object[] convert(TestCase testCase) {
+      var args = testCase.args();
       var actualArgs = new Object[args.length];
       for (var i = 0; i < args.length; i++) {
-        actualArgs[i] = gson.fromJson(args[i], types[i]);
+        actualArgs[i] = adapters[i].fromJsonTree(args[i]);
       }
       return actualArgs;
     }
@@ -71,10 +118,21 @@ public class TestRunner {
 
   /*
    * The result of running one test case as it goes back in JSON. This structure
-   * needs to match what the test result display code on the web expects.
+   * needs to match what the test result display code on the web expects. The
+   * cost is null unless we're measuring (see Meter).
    */
   static record TestResult(
-      JsonElement[] args, JsonElement got, JsonElement expected, boolean passed) {}
+      Object[] args,
+      JsonElement got,
+      JsonElement expected,
+      boolean passed,
+      Outcome outcome,
+      Cost cost) {
+
+    TestResult(Object[] args, JsonElement got, JsonElement expected, boolean passed, Cost cost) {
+      this(args, got, expected, passed, passed ? Outcome.PASSED : Outcome.FAILED, cost);
+    }
+  }
 
   /*
    * Actually testable combinations of a test method, a reference method, and
@@ -84,18 +142,37 @@ public class TestRunner {
 
     private final Method testMethod;
     private final Method referenceMethod;
-    private final TestCase[] cases;
+    private final Converter converter;
+    private final Object[][] cases;
+    private final boolean mutable;
+    private final Equivalence equivalence;
 
     Testable(Method testMethod, Method referenceMethod, TestCase[] cases) {
       this.testMethod = testMethod;
       this.referenceMethod = referenceMethod;
-      this.cases = cases;
+      this.converter = new Converter(referenceMethod);
+      this.cases = new Object[cases.length][];
+      for (var i = 0; i < cases.length; i++) {
+        this.cases[i] = converter.convert(cases[i]);
+      }
+      // If the methods can change their arguments each run needs its own copy.
+      this.mutable =
+          !Arrays.stream(referenceMethod.getParameterTypes()).allMatch(Utils::isImmutable);
+      this.equivalence = Equivalence.forType(referenceMethod.getReturnType());
     }
 
     public TestResult[] results() throws Exception {
+      // Expected values from a snapshot are only good for exactly these cases.
+      String key = Snapshot.enabled() ? gson.toJson(cases) : "";
+      Snapshot snapshot = Snapshot.load(referenceClass, referenceMethod, key).orElse(null);
+      Snapshot.Builder recording = Snapshot.recording() ? new Snapshot.Builder() : null;
+
       var results = new TestResult[cases.length];
       for (var i = 0; i < cases.length; i++) {
-        results[i] = test(cases[i]);
+        results[i] = test(cases[i], snapshot, i, recording);
+      }
+      if (recording != null) {
+        recording.build().save(referenceClass, referenceMethod, key);
       }
       return results;
     }
@@ -105,17 +182,57 @@ public class TestRunner {
     }
 
     public TestResult test(TestCase testCase) throws Exception {
-      var args = testCase.argsFor(testMethod);
+      return test(converter.convert(testCase), null, -1, null);
+    }
+
+    private TestResult test(Object[] original, Snapshot snapshot, int i, Snapshot.Builder recording)
+        throws Exception {
+      Events.Scope scope = Events.method(name());
+      var event = new Events.Case();
+      event.begin();
+      // Only worth rendering the arguments if JFR is going to record them.
+      if (event.isEnabled()) {
+        event.label = name() + "(" + Utils.limitedArgsToString(original) + ")";
+      }
+      try {
+        return run(original, snapshot, i, recording);
+      } finally {
+        event.finish();
+        scope.close();
+      }
+    }
+
+    private TestResult run(Object[] original, Snapshot snapshot, int i, Snapshot.Builder recording)
+        throws Exception {
+      var args = mutable ? (Object[]) Utils.deepArrayCopy(original) : original;
+      Meter meter = new Meter(false);
+      Meter referenceMeter = new Meter(false);
       Exception exception = null;
       Object got = null;
       try {
-        got = testMethod.invoke(testObject, args);
+        got = Watchdog.call(() -> meter.measure(() -> testMethod.invoke(testObject, args)));
+      } catch (Watchdog.TimedOut | Governor.LimitExceeded unfinished) {
+        var referenceArgs = referenceArgs(args, original, true, recording);
+        var expected = expected(referenceArgs, original, snapshot, i, recording, referenceMeter);
+        return new TestResult(
+            original,
+            gson.toJsonTree(unfinished.getMessage()),
+            gson.toJsonTree(expected),
+            false,
+            unfinished instanceof Watchdog.TimedOut ? Outcome.TIMED_OUT : Outcome.RESOURCE_LIMIT,
+            null);
       } catch (Exception e) {
         exception = e;
+      } catch (Error e) {
+        throw e;
+      } catch (Throwable t) {
+        // Can't happen: Method.invoke only throws Exceptions and Errors.
+        throw new UndeclaredThrowableException(t);
       }
-      var expected = referenceMethod.invoke(referenceObject, args);
+      var referenceArgs = referenceArgs(args, original, false, recording);
+      var expected = expected(referenceArgs, original, snapshot, i, recording, referenceMeter);
       return new TestResult(
-          testCase.args(),
+          original,
           // FIXME: should probably send the exception and got in separate fields.
           // Also should probably send got and expected as strings rendered in
           // Java rather than relying on being able to send back all the data
@@ -124,39 +241,56 @@ public class TestRunner {
           gson.toJsonTree(
               exception == null ? got : "Exception: " + getStackTraceAsString(exception)),
           gson.toJsonTree(expected),
-          theSame(got, expected));
+          theSame(got, expected),
+          meter.cost(referenceMeter));
     }
 
-    // Don't be so strict about double values since different correct answers
-    // with slightly diffrent order of operations can produce aswers that are
-    // not exactly the same. This method is not completely general since we can
-    // rely on the fact that got and expected are the same types.
-    public boolean theSame(Object got, Object expected) {
-      if (isFloatingPoint(got) && isFloatingPoint(expected)) {
-        double gotValue = ((Number) got).doubleValue();
-        double expectedValue = ((Number) expected).doubleValue();
-
-        if (gotValue == expectedValue) {
-          // Values are exactly the same.
-          return true;
-        } else {
-          if (gotValue == 0 || expectedValue == 0) {
-            // If either is zero and the other is not that's a fail. (I'm not
-            // sure this is mathematically 100% right but we need to avoid
-            // dividing by 0 in the next step.)
-            return false;
-          } else {
-            // Otherwise, make sure the percent error is small
-            return Math.abs((gotValue - expectedValue) / expectedValue) < 1e-10;
-          }
-        }
+    // The reference normally sees the arguments as the student method left
+    // them. But an abandoned student call may still be changing them, and a
+    // recording pairs the original arguments with the reference's answer for
+    // them, so in those cases it gets a copy of the originals of its own.
+    private Object[] referenceArgs(
+        Object[] args, Object[] original, boolean abandoned, Snapshot.Builder recording) {
+      return mutable && (abandoned || recording != null) ? (Object[]) Utils.deepArrayCopy(original) : args;
+    }
+
+    // The student method may already have changed args so record the original
+    // arguments, which nothing is allowed to touch.
+    private Object expected(
+        Object[] args,
+        Object[] original,
+        Snapshot snapshot,
+        int i,
+        Snapshot.Builder recording,
+        Meter meter)
+        throws Exception {
+      if (snapshot != null) {
+        return snapshot.expected()[i];
       } else {
-        return Objects.equals(got, expected);
+        var expected = invokeReference(args, meter);
+        if (recording != null) {
+          recording.add(original, expected);
+        }
+        return expected;
       }
     }
 
-    public boolean isFloatingPoint(Object o) {
-      return o instanceof Double || o instanceof Float;
+    private Object invokeReference(Object[] args, Meter meter) throws Exception {
+      try {
+        return meter.measure(() -> referenceMethod.invoke(referenceObject, args));
+      } catch (Exception | Error e) {
+        throw e;
+      } catch (Throwable t) {
+        // Can't happen: Method.invoke only throws Exceptions and Errors.
+        throw new UndeclaredThrowableException(t);
+      }
+    }
+
+    // Don't be so strict about double values since different correct answers
+    // with slightly diffrent order of operations can produce aswers that are
+    // not exactly the same. See Equivalence for the details.
+    public boolean theSame(Object got, Object expected) {
+      return equivalence.equivalent(got, expected);
     }
   }
 
@@ -169,6 +303,10 @@ public class TestRunner {
   }
 
   public List<Testable> testables() {
+    return testables;
+  }
+
+  private List<Testable> testables(Map<String, TestCase[]> allTestCases) {
     var testables = new ArrayList<Testable>();
 
     for (Method m : referenceMethods) {
@@ -185,21 +323,75 @@ public class TestRunner {
   }
 
   public Optional<Method> testMethod(Method m) {
-    try {
-      return Optional.of(testClass.getDeclaredMethod(m.getName(), m.getParameterTypes()));
-    } catch (NoSuchMethodException | SecurityException e) {
-      return Optional.empty();
-    }
+    return Optional.ofNullable(ClassInfo.of(testClass).method(m.getName(), m.getParameterTypes()));
   }
 
   public String resultsAsJson() throws Exception {
-    return gson.toJson(results());
+    var results = results();
+    var event = new Events.ToJson();
+    event.begin();
+    String json = gson.toJson(results);
+    event.characters = json.length();
+    event.finish();
+    return json;
   }
 
   public void outputResults() throws Exception {
     System.out.println(resultsAsJson());
   }
 
+  /*
+   * Write results as newline-delimited JSON, one line per method as soon as
+   * its cases have all run.
+   */
+  public void streamResults(ResultWriter out) throws Exception {
+    for (Testable t : testables()) {
+      out.write(t.name(), t.results());
+    }
+  }
+
+  /*
+   * Like streamResults but reads the test cases from the file one at a time,
+   * running each and writing its result before reading the next, so we never
+   * have more than one test case in memory no matter how big the file is.
+   * Methods are reported in the order they appear in the file. Doesn't use
+   * snapshots since those cover all the cases for a method at once.
+   */
+  public static void streamResults(
+      String testClassName, String referenceClassName, Path testCasesFile, ResultWriter out)
+      throws Exception {
+    var runner = new TestRunner(testClassName, referenceClassName, Map.of());
+    try (var json = new JsonReader(Files.newBufferedReader(testCasesFile))) {
+      json.beginObject();
+      while (json.hasNext()) {
+        String name = json.nextName();
+        Optional<Testable> testable = runner.testable(name);
+        if (testable.isEmpty()) {
+          json.skipValue();
+          continue;
+        }
+        out.beginResults(name);
+        json.beginArray();
+        while (json.hasNext()) {
+          TestCase testCase = gson.fromJson(json, TestCase.class);
+          out.writeResult(testable.get().test(testCase));
+        }
+        json.endArray();
+        out.endResults();
+      }
+      json.endObject();
+    }
+  }
+
+  // A Testable with no cases of its own for the named method, if both classes
+  // have it.
+  private Optional<Testable> testable(String name) {
+    return referenceMethods.stream()
+        .filter(m -> m.getName().equals(name))
+        .flatMap(m -> testMethod(m).map(t -> new Testable(t, m, new TestCase[0])).stream())
+        .findFirst();
+  }
+
   public static String getStackTraceAsString(Throwable throwable) {
     StringWriter sw = new StringWriter();
     PrintWriter pw = new PrintWriter(sw);
@@ -208,8 +400,17 @@ public class TestRunner {
   }
 
   public static void main(String[] args) {
+    Watchdog.defaultTimeoutMillis(Watchdog.SERVER_TIMEOUT_MILLIS);
     try {
-      new TestRunner(args[0], args[1], args[2]).outputResults();
+      if (args[0].equals("--stream") && !Snapshot.enabled()) {
+        var out = new ResultWriter(System.out);
+        streamResults(args[1], args[2], Path.of(args[3]), out);
+        out.flush();
+      } else if (args[0].equals("--stream")) {
+        new TestRunner(args[1], args[2], args[3]).streamResults(new ResultWriter(System.out));
+      } else {
+        new TestRunner(args[0], args[1], args[2]).outputResults();
+      }
     } catch (Exception e) {
       System.err.println("Exception while running tests.");
       e.printStackTrace(System.err);
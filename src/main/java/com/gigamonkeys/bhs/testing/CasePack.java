@@ -0,0 +1,446 @@
+package com.gigamonkeys.bhs.testing;
+
+import java.io.*;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Test case arguments for a bunch of methods saved in a compact binary file
+ * that is read back through a memory mapping. Generating thousands of random
+ * arrays every time a Tester is constructed is slow and the results take up
+ * space on the heap of every grader, so instead we can generate them once per
+ * version of an assignment, write them to a pack, and then decode each case
+ * only when it's about to run. All the threads in a JVM share one mapping of
+ * a given pack.
+ *
+ * Packs can hold primitives and their boxes, strings, arrays of any of those
+ * (including nested arrays), and lists. Lists come back as ArrayLists. The
+ * whole file has to be smaller than 2GB.
+ *
+ * The file is laid out as a header, the encoded cases one after another, the
+ * offsets of each method's cases, and finally a directory of methods followed
+ * by the offset of the directory.
+ */
+public final class CasePack {
+
+  private static final int MAGIC = 0x42485350; // "BHSP"
+  private static final int VERSION = 1;
+
+  private static final String DIR =
+      System.getProperty("bhs.casepack.dir", Path.of(System.getProperty("java.io.tmpdir"), "bhs-casepacks").toString());
+
+  private static final String EXTENSION = ".cases";
+
+  // Type tags
+  private static final byte NULL = 0;
+  private static final byte INT = 1;
+  private static final byte LONG = 2;
+  private static final byte DOUBLE = 3;
+  private static final byte FLOAT = 4;
+  private static final byte SHORT = 5;
+  private static final byte BYTE = 6;
+  private static final byte CHAR = 7;
+  private static final byte BOOLEAN = 8;
+  private static final byte STRING = 9;
+  private static final byte INT_ARRAY = 10;
+  private static final byte LONG_ARRAY = 11;
+  private static final byte DOUBLE_ARRAY = 12;
+  private static final byte FLOAT_ARRAY = 13;
+  private static final byte SHORT_ARRAY = 14;
+  private static final byte BYTE_ARRAY = 15;
+  private static final byte CHAR_ARRAY = 16;
+  private static final byte BOOLEAN_ARRAY = 17;
+  private static final byte OBJECT_ARRAY = 18;
+  private static final byte LIST = 19;
+
+  private static final Map<Path, CasePack> open = new ConcurrentHashMap<>();
+
+  private final ByteBuffer buffer;
+  private final Map<String, List<Object[]>> tests;
+  private volatile String hash;
+
+  private CasePack(ByteBuffer buffer) throws IOException {
+    this.buffer = buffer;
+    if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+      throw new IOException("Not a version " + VERSION + " case pack");
+    }
+    ByteBuffer b = buffer.duplicate().position(buffer.getInt(buffer.limit() - 4));
+    int methods = b.getInt();
+    var tests = new LinkedHashMap<String, List<Object[]>>();
+    for (int i = 0; i < methods; i++) {
+      String name = readString(b);
+      int count = b.getInt();
+      int index = b.getInt();
+      tests.put(name, new Cases(index, count));
+    }
+    this.tests = Collections.unmodifiableMap(tests);
+  }
+
+  /*
+   * The cases for one method, decoded fresh from the mapping on every get so
+   * nothing holds onto them after they've run and the code under test can
+   * do what it wants with them.
+   */
+  private class Cases extends AbstractList<Object[]> implements RandomAccess {
+    private final int index;
+    private final int count;
+
+    Cases(int index, int count) {
+      this.index = index;
+      this.count = count;
+    }
+
+    public Object[] get(int i) {
+      if (i < 0 || i >= count) throw new IndexOutOfBoundsException(i);
+      // Each get uses its own view of the buffer so any number of threads
+      // can decode at once.
+      ByteBuffer b = buffer.duplicate().position(buffer.getInt(index + i * 4));
+      Object[] args = new Object[b.getInt()];
+      for (int j = 0; j < args.length; j++) {
+        args[j] = read(b);
+      }
+      return args;
+    }
+
+    public int size() {
+      return count;
+    }
+  }
+
+  /**
+   * The pack in the given file, mapped the first time it's asked for and
+   * shared after that. Packs are never changed once written so there's no
+   * need to ever look at the file again.
+   */
+  public static CasePack open(Path file) throws IOException {
+    try {
+      return open.computeIfAbsent(file.toAbsolutePath().normalize(), CasePack::map);
+    } catch (UncheckedIOException uioe) {
+      throw uioe.getCause();
+    }
+  }
+
+  /**
+   * The pack for the given tester class in the directory named by the
+   * bhs.casepack.dir property (default: bhs-casepacks in the temporary
+   * directory), generating it with the supplier if it doesn't
+   * exist yet. The file name includes a hash of the tester's bytecodes so
+   * changing the tester means a new pack.
+   */
+  public static CasePack forTester(Class<?> tester, Supplier<Map<String, Object[][]>> generate)
+      throws IOException {
+    Path file = Path.of(DIR, Snapshot.version(tester) + EXTENSION);
+    if (!Files.exists(file)) {
+      write(file, generate.get());
+    }
+    return open(file);
+  }
+
+  private static CasePack map(Path file) {
+    try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      // Mapping stays valid after the channel is closed.
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return new CasePack(buffer);
+    } catch (IOException ioe) {
+      throw new UncheckedIOException(ioe);
+    }
+  }
+
+  /**
+   * Write the test cases to a pack in the given file.
+   */
+  public static void write(Path file, Map<String, Object[][]> tests) throws IOException {
+    Path dir = file.toAbsolutePath().getParent();
+    Files.createDirectories(dir);
+    Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+    try {
+      try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+
+        var offsets = new LinkedHashMap<String, int[]>();
+        for (var e : tests.entrySet()) {
+          Object[][] cases = e.getValue();
+          int[] o = new int[cases.length];
+          for (int i = 0; i < cases.length; i++) {
+            o[i] = out.size();
+            out.writeInt(cases[i].length);
+            for (Object arg : cases[i]) {
+              write(out, arg);
+            }
+          }
+          offsets.put(e.getKey(), o);
+        }
+
+        var indexes = new LinkedHashMap<String, Integer>();
+        for (var e : offsets.entrySet()) {
+          indexes.put(e.getKey(), out.size());
+          for (int o : e.getValue()) {
+            out.writeInt(o);
+          }
+        }
+
+        int directory = out.size();
+        out.writeInt(offsets.size());
+        for (var e : offsets.entrySet()) {
+          writeString(out, e.getKey());
+          out.writeInt(e.getValue().length);
+          out.writeInt(indexes.get(e.getKey()));
+        }
+        out.writeInt(directory);
+        // DataOutputStream's count sticks at MAX_VALUE rather than overflowing.
+        if (out.size() == Integer.MAX_VALUE) {
+          throw new IOException("Case pack too big");
+        }
+      }
+      Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /**
+   * Hash of the pack's contents, computed the first time it's asked for.
+   */
+  public String hash() {
+    if (hash == null) {
+      MessageDigest md = Snapshot.sha256();
+      md.update(buffer.duplicate().clear());
+      hash = HexFormat.of().formatHex(Arrays.copyOf(md.digest(), 8));
+    }
+    return hash;
+  }
+
+  /**
+   * The names of the methods with cases in this pack.
+   */
+  public Set<String> names() {
+    return tests.keySet();
+  }
+
+  /**
+   * The cases for the named method or null if there aren't any.
+   */
+  public List<Object[]> cases(String name) {
+    return tests.get(name);
+  }
+
+  /**
+   * All the cases by method name.
+   */
+  public Map<String, List<Object[]>> tests() {
+    return tests;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  // Encoding
+
+  private static void write(DataOutputStream out, Object o) throws IOException {
+    switch (o) {
+      case null -> out.writeByte(NULL);
+      case Integer i -> {
+        out.writeByte(INT);
+        out.writeInt(i);
+      }
+      case Long l -> {
+        out.writeByte(LONG);
+        out.writeLong(l);
+      }
+      case Double d -> {
+        out.writeByte(DOUBLE);
+        out.writeDouble(d);
+      }
+      case Float f -> {
+        out.writeByte(FLOAT);
+        out.writeFloat(f);
+      }
+      case Short s -> {
+        out.writeByte(SHORT);
+        out.writeShort(s);
+      }
+      case Byte b -> {
+        out.writeByte(BYTE);
+        out.writeByte(b);
+      }
+      case Character c -> {
+        out.writeByte(CHAR);
+        out.writeChar(c);
+      }
+      case Boolean b -> {
+        out.writeByte(BOOLEAN);
+        out.writeBoolean(b);
+      }
+      case String s -> {
+        out.writeByte(STRING);
+        writeString(out, s);
+      }
+      case int[] a -> {
+        out.writeByte(INT_ARRAY);
+        out.writeInt(a.length);
+        for (int x : a) out.writeInt(x);
+      }
+      case long[] a -> {
+        out.writeByte(LONG_ARRAY);
+        out.writeInt(a.length);
+        for (long x : a) out.writeLong(x);
+      }
+      case double[] a -> {
+        out.writeByte(DOUBLE_ARRAY);
+        out.writeInt(a.length);
+        for (double x : a) out.writeDouble(x);
+      }
+      case float[] a -> {
+        out.writeByte(FLOAT_ARRAY);
+        out.writeInt(a.length);
+        for (float x : a) out.writeFloat(x);
+      }
+      case short[] a -> {
+        out.writeByte(SHORT_ARRAY);
+        out.writeInt(a.length);
+        for (short x : a) out.writeShort(x);
+      }
+      case byte[] a -> {
+        out.writeByte(BYTE_ARRAY);
+        out.writeInt(a.length);
+        out.write(a);
+      }
+      case char[] a -> {
+        out.writeByte(CHAR_ARRAY);
+        out.writeInt(a.length);
+        for (char x : a) out.writeChar(x);
+      }
+      case boolean[] a -> {
+        out.writeByte(BOOLEAN_ARRAY);
+        out.writeInt(a.length);
+        for (boolean x : a) out.writeBoolean(x);
+      }
+      case Object[] a -> {
+        out.writeByte(OBJECT_ARRAY);
+        writeString(out, a.getClass().getComponentType().getName());
+        out.writeInt(a.length);
+        for (Object x : a) write(out, x);
+      }
+      case List<?> list -> {
+        out.writeByte(LIST);
+        out.writeInt(list.size());
+        for (Object x : list) write(out, x);
+      }
+      default -> throw new IllegalArgumentException("Can't pack " + o.getClass().getName());
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  // Decoding
+
+  private static Object read(ByteBuffer b) {
+    byte tag = b.get();
+    return switch (tag) {
+      case NULL -> null;
+      case INT -> b.getInt();
+      case LONG -> b.getLong();
+      case DOUBLE -> b.getDouble();
+      case FLOAT -> b.getFloat();
+      case SHORT -> b.getShort();
+      case BYTE -> b.get();
+      case CHAR -> b.getChar();
+      case BOOLEAN -> b.get() != 0;
+      case STRING -> readString(b);
+      case INT_ARRAY -> {
+        int[] a = new int[b.getInt()];
+        b.asIntBuffer().get(a);
+        b.position(b.position() + a.length * Integer.BYTES);
+        yield a;
+      }
+      case LONG_ARRAY -> {
+        long[] a = new long[b.getInt()];
+        b.asLongBuffer().get(a);
+        b.position(b.position() + a.length * Long.BYTES);
+        yield a;
+      }
+      case DOUBLE_ARRAY -> {
+        double[] a = new double[b.getInt()];
+        b.asDoubleBuffer().get(a);
+        b.position(b.position() + a.length * Double.BYTES);
+        yield a;
+      }
+      case FLOAT_ARRAY -> {
+        float[] a = new float[b.getInt()];
+        b.asFloatBuffer().get(a);
+        b.position(b.position() + a.length * Float.BYTES);
+        yield a;
+      }
+      case SHORT_ARRAY -> {
+        short[] a = new short[b.getInt()];
+        b.asShortBuffer().get(a);
+        b.position(b.position() + a.length * Short.BYTES);
+        yield a;
+      }
+      case BYTE_ARRAY -> {
+        byte[] a = new byte[b.getInt()];
+        b.get(a);
+        yield a;
+      }
+      case CHAR_ARRAY -> {
+        char[] a = new char[b.getInt()];
+        b.asCharBuffer().get(a);
+        b.position(b.position() + a.length * Character.BYTES);
+        yield a;
+      }
+      case BOOLEAN_ARRAY -> {
+        boolean[] a = new boolean[b.getInt()];
+        for (int i = 0; i < a.length; i++) a[i] = b.get() != 0;
+        yield a;
+      }
+      case OBJECT_ARRAY -> {
+        Class<?> component = componentType(readString(b));
+        Object[] a = (Object[]) Array.newInstance(component, b.getInt());
+        for (int i = 0; i < a.length; i++) a[i] = read(b);
+        yield a;
+      }
+      case LIST -> {
+        int n = b.getInt();
+        var list = new ArrayList<Object>(n);
+        for (int i = 0; i < n; i++) list.add(read(b));
+        yield list;
+      }
+      default -> throw new IllegalStateException("Bad tag " + tag + " in case pack");
+    };
+  }
+
+  private static String readString(ByteBuffer b) {
+    byte[] bytes = new byte[b.getInt()];
+    b.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static Class<?> componentType(String name) {
+    try {
+      return Class.forName(name, false, CasePack.class.getClassLoader());
+    } catch (ClassNotFoundException cnfe) {
+      throw new IllegalStateException("Unknown array type in case pack: " + name, cnfe);
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package com.gigamonkeys.bhs.testing;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The declared fields, methods, and constructors of a class, indexed by name
+ * and parameter types and already made accessible. Computed once per class
+ * and cached in a ClassValue so the structural checks in Results and friends
+ * don't redo the same reflection (and construct the same
+ * NoSuchMethodExceptions) over and over, while still letting student classes
+ * be unloaded along with their class loader.
+ */
+public final class ClassInfo {
+
+  private static final ClassValue<ClassInfo> INFO =
+      new ClassValue<>() {
+        @Override
+        protected ClassInfo computeValue(Class<?> clazz) {
+          return new ClassInfo(clazz);
+        }
+      };
+
+  private static record Signature(String name, List<Class<?>> parameterTypes) {}
+
+  private final Map<String, Field> fields = new HashMap<>();
+  private final Map<Signature, Method> methods = new HashMap<>();
+  private final Map<List<Class<?>>, Constructor<?>> constructors = new HashMap<>();
+
+  private ClassInfo(Class<?> clazz) {
+    for (Field f : clazz.getDeclaredFields()) {
+      fields.put(f.getName(), accessible(f));
+    }
+    for (Method m : clazz.getDeclaredMethods()) {
+      // Like getDeclaredMethod, prefer the real method over any bridge
+      // methods with the same signature.
+      methods.merge(
+          new Signature(m.getName(), List.of(m.getParameterTypes())),
+          accessible(m),
+          (old, m2) -> old.isBridge() ? m2 : old);
+    }
+    for (Constructor<?> c : clazz.getDeclaredConstructors()) {
+      constructors.put(List.of(c.getParameterTypes()), accessible(c));
+    }
+  }
+
+  private static <T extends AccessibleObject> T accessible(T o) {
+    // Won't work for classes in named modules but we don't care about those.
+    o.trySetAccessible();
+    return o;
+  }
+
+  public static ClassInfo of(Class<?> clazz) {
+    return INFO.get(clazz);
+  }
+
+  /** The declared field with the given name or null if there is none. */
+  public Field field(String name) {
+    return fields.get(name);
+  }
+
+  /** The declared method with the given signature or null if there is none. */
+  public Method method(String name, Class<?>... parameterTypes) {
+    return methods.get(new Signature(name, List.of(parameterTypes)));
+  }
+
+  /** The declared constructor with the given parameter types or null if there is none. */
+  @SuppressWarnings("unchecked")
+  public <T> Constructor<T> constructor(Class<?>... parameterTypes) {
+    return (Constructor<T>) constructors.get(List.of(parameterTypes));
+  }
+}
@@ -0,0 +1,339 @@
+package com.gigamonkeys.bhs.testing;
+
+import static com.gigamonkeys.bhs.testing.Utils.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.IntFunction;
+
+/**
+ * Testable that checks how the running time of a method grows with the size
+ * of its input rather than what it returns. Both the student and reference
+ * methods are timed on a geometric series of input sizes and each is fit to
+ * the usual growth rates (1, log n, n, n log n, n², n³). Passes if the student
+ * method's time doesn't grow noticeably faster than the reference's.
+ *
+ * Timings are the median of several trials after some warm-up calls so the
+ * JIT has had a chance to compile both methods. We stop going to bigger sizes
+ * as soon as a single call takes longer than the time budget.
+ */
+public class ComplexityTestable implements Testable {
+
+  private static final int DEFAULT_MIN_SIZE = 1_000;
+  private static final int DEFAULT_MAX_SIZE = 1_000_000;
+  private static final long DEFAULT_BUDGET_MILLIS = 1_000;
+
+  private static final int GROWTH = 2;
+  private static final int WARMUPS = 3;
+
+  // Before timing anything, call each method on the smallest input for up to
+  // this long (or this many calls) so the JIT has compiled it.
+  private static final long JIT_WARMUP_NANOS = 200_000_000;
+  private static final int JIT_WARMUP_CALLS = 10_000;
+  private static final int TRIALS = 5;
+
+  // Multiple of the budget to allow the student method before giving up.
+  private static final long BUDGET_MULTIPLIER = 20;
+
+  // Calls faster than this are timed in batches.
+  private static final long MIN_SAMPLE_NANOS = 1_000_000;
+
+  // Limit on the total number of elements in the copies of the input we make
+  // up front for a batch of calls to a method that changes its arguments.
+  private static final long MAX_BATCH_ELEMENTS = 1L << 22;
+
+  // How much steeper (on a log-log plot) the student's growth can be than the
+  // reference's and still pass. Enough to absorb the difference between n and
+  // n log n, which is hard to tell apart from timings, but not between n log n
+  // and n².
+  private static final double SLOPE_TOLERANCE = 0.5;
+
+  // Need at least this many sizes to say anything about the growth rate.
+  private static final int MIN_POINTS = 3;
+
+  private static record Model(String name, DoubleUnaryOperator f) {}
+
+  private static final Model[] MODELS = {
+    new Model("1", n -> 1),
+    new Model("log n", n -> Math.log(n)),
+    new Model("n", n -> n),
+    new Model("n log n", n -> n * Math.log(n)),
+    new Model("n²", n -> n * n),
+    new Model("n³", n -> n * n * n),
+  };
+
+  private static record Fit(int model, double slope) {
+    String bigO() {
+      return "~O(" + MODELS[model].name() + ")";
+    }
+  }
+
+  private final Method method;
+  private final MethodHandle studentMethod;
+  private final MethodHandle referenceMethod;
+  private final IntFunction<Object[]> inputs;
+  private final int minSize;
+  private final int maxSize;
+  private final long budgetNanos;
+  // Whether we can tell if the method changes its arguments by fingerprinting
+  // them.
+  private final boolean fingerprintable;
+
+  /**
+   * Time the method on inputs of 1,000 to 1,000,000 elements with a one second
+   * budget per call. The inputs function takes a size and returns the
+   * arguments to pass to the method, e.g. n -> new Object[] {
+   * Generator.randomInts(n) }.
+   */
+  public ComplexityTestable(
+      Method method, Object testObject, Object referenceObject, IntFunction<Object[]> inputs) {
+    this(method, testObject, referenceObject, inputs, DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, DEFAULT_BUDGET_MILLIS);
+  }
+
+  public ComplexityTestable(
+      Method method,
+      Object testObject,
+      Object referenceObject,
+      IntFunction<Object[]> inputs,
+      int minSize,
+      int maxSize,
+      long budgetMillis) {
+    this.method = method;
+    this.studentMethod = MethodTestable.invoker(MethodTestable.studentMethod(method, testObject), testObject);
+    this.referenceMethod = MethodTestable.invoker(method, referenceObject);
+    this.inputs = inputs;
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+    this.budgetNanos = budgetMillis * 1_000_000;
+    this.fingerprintable = Arrays.stream(method.getGenericParameterTypes()).allMatch(Utils::isFingerprintable);
+  }
+
+  public String name() {
+    return method.getName() + " complexity";
+  }
+
+  /**
+   * Never, since other work running at the same time would throw off the
+   * timings. Parallel runs it once the pool work it started has finished.
+   */
+  public boolean concurrent() {
+    return false;
+  }
+
+  public TestResult[] results() throws Exception {
+    var r = new Results();
+    String label = method.getName() + " growth rate";
+
+    List<Integer> sizes = new ArrayList<>();
+    List<Double> expectedTimes = new ArrayList<>();
+    List<Double> gotTimes = new ArrayList<>();
+
+    for (long n = minSize; n <= maxSize; n *= GROWTH) {
+      Object[] args = inputs.apply((int) n);
+      boolean first = n == minSize;
+      if (first) {
+        warmUp(referenceMethod, args);
+      }
+      double expected = timeReference(args);
+      double got;
+      try {
+        // Timing makes a dozen or so calls, each of which can take up to the
+        // budget before we notice it's too slow.
+        long deadline = (first ? JIT_WARMUP_NANOS : 0) / 1_000_000 + budgetNanos / 1_000_000 * BUDGET_MULTIPLIER;
+        got =
+            Watchdog.call(
+                () -> {
+                  // The time budget is what limits us here; big inputs can
+                  // legitimately take lots of steps.
+                  StepBudget.Saved saved = StepBudget.arm(Long.MAX_VALUE);
+                  try {
+                    if (first) warmUp(studentMethod, args);
+                    return time(studentMethod, args);
+                  } finally {
+                    StepBudget.disarm(saved);
+                  }
+                },
+                deadline);
+      } catch (Watchdog.TimedOut timedOut) {
+        r.addUnfinished(label, "finishes at n = " + n, timedOut, TestResult.Outcome.TIMED_OUT, null);
+        return r.results();
+      } catch (Governor.LimitExceeded exceeded) {
+        r.addUnfinished(label, "finishes at n = " + n, exceeded, TestResult.Outcome.RESOURCE_LIMIT, null);
+        return r.results();
+      } catch (Throwable t) {
+        r.add(label, "no exception", "exception at n = " + n + ": " + t, false);
+        return r.results();
+      }
+      sizes.add((int) n);
+      expectedTimes.add(expected);
+      gotTimes.add(got);
+      if (expected > budgetNanos || got > budgetNanos) break;
+    }
+
+    if (sizes.size() < MIN_POINTS) {
+      r.add(label, "enough sizes to measure", "only " + sizes.size() + " sizes within time budget", false);
+    } else {
+      Fit expected = fit(sizes, expectedTimes);
+      Fit got = fit(sizes, gotTimes);
+      boolean passed = got.model() <= expected.model() || got.slope() - expected.slope() < SLOPE_TOLERANCE;
+      r.add(label, expected.bigO(), "expected " + expected.bigO() + ", observed " + got.bigO(), passed);
+    }
+    return r.results();
+  }
+
+  private void warmUp(MethodHandle h, Object[] args) throws Exception {
+    long end = System.nanoTime() + Math.min(JIT_WARMUP_NANOS, budgetNanos);
+    try {
+      boolean mutates = mutates(h, args);
+      for (int i = 0; i < JIT_WARMUP_CALLS && System.nanoTime() < end; i++) {
+        sample(h, args, mutates, 1);
+      }
+    } catch (Exception | Error e) {
+      throw e;
+    } catch (Throwable t) {
+      throw new UndeclaredThrowableException(t);
+    }
+  }
+
+  private double timeReference(Object[] args) throws Exception {
+    try {
+      return time(referenceMethod, args);
+    } catch (Exception | Error e) {
+      throw e;
+    } catch (Throwable t) {
+      throw new UndeclaredThrowableException(t);
+    }
+  }
+
+  /*
+   * Median nanoseconds per call of the method on the given arguments.
+   */
+  private double time(MethodHandle h, Object[] args) throws Throwable {
+    boolean mutates = mutates(h, args);
+    for (int i = 0; i < WARMUPS; i++) {
+      double t = sample(h, args, mutates, 1);
+      // Don't bother warming up if it's already too slow.
+      if (t > budgetNanos) return t;
+    }
+
+    int batch = batchSize(h, args, mutates);
+    double[] times = new double[TRIALS];
+    for (int i = 0; i < TRIALS; i++) {
+      times[i] = sample(h, args, mutates, batch);
+      if (times[i] > budgetNanos) return times[i];
+    }
+    Arrays.sort(times);
+    return times[TRIALS / 2];
+  }
+
+  // Whether the method changes its arguments in which case each call needs a
+  // fresh copy. If we can't tell we have to assume it does.
+  private boolean mutates(MethodHandle h, Object[] args) throws Throwable {
+    if (!fingerprintable) return true;
+    long before = fingerprint(args);
+    Object[] probe = (Object[]) deepArrayCopy(args);
+    invoke(h, probe);
+    return fingerprint(probe) != before;
+  }
+
+  // Find a number of calls that takes long enough to time accurately.
+  private int batchSize(MethodHandle h, Object[] args, boolean mutates) throws Throwable {
+    long maxBatch = mutates ? Math.max(1, MAX_BATCH_ELEMENTS / Math.max(1, elements(args))) : Integer.MAX_VALUE;
+    int batch = 1;
+    while (batch < maxBatch && sample(h, args, mutates, batch) * batch < MIN_SAMPLE_NANOS) {
+      batch *= 2;
+    }
+    return batch;
+  }
+
+  // Average nanoseconds per call over a batch of calls. Copies of the
+  // arguments are made before starting the clock.
+  private static double sample(MethodHandle h, Object[] args, boolean mutates, int batch) throws Throwable {
+    Object[][] copies = new Object[mutates ? batch : 1][];
+    for (int i = 0; i < copies.length; i++) {
+      copies[i] = mutates ? (Object[]) deepArrayCopy(args) : args;
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < batch; i++) {
+      invoke(h, copies[mutates ? i : 0]);
+    }
+    return (double) (System.nanoTime() - start) / batch;
+  }
+
+  private static Object invoke(MethodHandle h, Object[] args) throws Throwable {
+    return (Object) h.invokeExact(args);
+  }
+
+  private static long elements(Object[] args) {
+    long total = 0;
+    for (Object arg : args) {
+      if (arg != null && arg.getClass().isArray()) {
+        total += Array.getLength(arg);
+      } else if (arg instanceof Collection<?> c) {
+        total += c.size();
+      } else {
+        total++;
+      }
+    }
+    return total;
+  }
+
+  /*
+   * Find the model that best fits the timings. Fit in log space, where
+   * t = c * f(n) becomes log t = log c + log f(n), so big sizes don't swamp
+   * small ones. The best c is then the mean of log t - log f(n) and we pick
+   * the model with the smallest squared error. Also compute the slope of log t
+   * against log n which is a less lumpy measure of how fast time grows.
+   */
+  private static Fit fit(List<Integer> sizes, List<Double> times) {
+    int k = sizes.size();
+    double[] logN = new double[k];
+    double[] logT = new double[k];
+    for (int i = 0; i < k; i++) {
+      logN[i] = Math.log(sizes.get(i));
+      // Clamp at 1ns so a too-fast-to-measure call doesn't give us log 0.
+      logT[i] = Math.log(Math.max(1.0, times.get(i)));
+    }
+
+    int best = 0;
+    double bestError = Double.MAX_VALUE;
+    for (int m = 0; m < MODELS.length; m++) {
+      double[] logF = new double[k];
+      double logC = 0;
+      for (int i = 0; i < k; i++) {
+        logF[i] = Math.log(MODELS[m].f().applyAsDouble(sizes.get(i)));
+        logC += logT[i] - logF[i];
+      }
+      logC /= k;
+      double error = 0;
+      for (int i = 0; i < k; i++) {
+        double d = logT[i] - (logC + logF[i]);
+        error += d * d;
+      }
+      if (error < bestError) {
+        best = m;
+        bestError = error;
+      }
+    }
+    return new Fit(best, slope(logN, logT));
+  }
+
+  private static double slope(double[] xs, double[] ys) {
+    double meanX = Arrays.stream(xs).average().orElse(0);
+    double meanY = Arrays.stream(ys).average().orElse(0);
+    double num = 0;
+    double den = 0;
+    for (int i = 0; i < xs.length; i++) {
+      num += (xs[i] - meanX) * (ys[i] - meanY);
+      den += (xs[i] - meanX) * (xs[i] - meanX);
+    }
+    return den == 0 ? 0 : num / den;
+  }
+}
@@ -0,0 +1,23 @@
+package com.gigamonkeys.bhs.testing;
+
+/**
+ * What it cost to run the code for one test case. Steps are measured in a way
+ * that doesn't depend on how fast or busy the grading machine is; CPU time and
+ * allocated bytes are the raw numbers for the thread that ran the code. Each
+ * is null if it wasn't measured. For student code, reference is the cost of
+ * running the reference solution on the same case, if we did, for comparison.
+ */
+public record Cost(Long steps, Long cpuNanos, Long allocatedBytes, Cost reference) {
+
+  /**
+   * This cost spread evenly over n results, e.g. when one piece of code
+   * produces a bunch of results at once.
+   */
+  public Cost share(int n) {
+    return new Cost(
+        steps == null ? null : steps / n,
+        cpuNanos == null ? null : cpuNanos / n,
+        allocatedBytes == null ? null : allocatedBytes / n,
+        reference == null ? null : reference.share(n));
+  }
+}
@@ -0,0 +1,279 @@
+package com.gigamonkeys.bhs.testing;
+
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.RecordComponent;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides whether a value produced by student code is equivalent to the
+ * expected value and, if not, where they first differ. The comparison for a
+ * given type is worked out once and cached so comparing the results of
+ * thousands of test cases doesn't mean re-dispatching on the class and
+ * component type every time.
+ *
+ * Floating point values (including in arrays) only need to be within a small
+ * relative error of each other since different correct answers that do
+ * operations in a slightly different order can produce slightly different
+ * results. Arrays, lists, maps, and records are compared element by element.
+ * Everything else uses equals.
+ *
+ * Values have to be of the same class only where the class is pinned down,
+ * i.e. arrays and final classes. Any two lists or maps with equivalent
+ * contents are equivalent, as are boxed numbers with the same value.
+ */
+public final class Equivalence {
+
+  private static final double DOUBLE_TOLERANCE = 1e-10;
+  private static final double FLOAT_TOLERANCE = 1e-6;
+
+  /*
+   * Compares two non-null values of the same class returning null if they are
+   * equivalent, "" if they differ as a whole, or the path to the first
+   * difference, e.g. "[3]" or "[2][0]" or ".x()".
+   */
+  private interface Comparer {
+    String difference(Object got, Object expected);
+  }
+
+  private static final ClassValue<Comparer> COMPARERS =
+      new ClassValue<>() {
+        @Override
+        protected Comparer computeValue(Class<?> type) {
+          return comparer(type);
+        }
+      };
+
+  /** Equivalence that works out how to compare from the runtime class of the values. */
+  public static final Equivalence ANY = new Equivalence(Equivalence::anyDifference);
+
+  private final Comparer comparer;
+
+  private Equivalence(Comparer comparer) {
+    this.comparer = comparer;
+  }
+
+  /**
+   * Equivalence for values whose static type is the given type, e.g. the
+   * return type of a method. If the type pins down the runtime class (it's
+   * primitive, final, or an array of such) we can pick the comparison now.
+   */
+  public static Equivalence forType(Class<?> type) {
+    if (type.isPrimitive()) {
+      type = MethodType.methodType(type).wrap().returnType();
+    }
+    if (!isExact(type)) {
+      return ANY;
+    } else {
+      Comparer c = COMPARERS.get(type);
+      return new Equivalence((got, expected) -> checked(c, got, expected));
+    }
+  }
+
+  // Nested comparisons go straight to the comparers so only the top-level
+  // comparison is recorded as an event.
+
+  public boolean equivalent(Object got, Object expected) {
+    return difference(got, expected) == null;
+  }
+
+  /**
+   * Null if the values are equivalent, "" if they differ as a whole, or the
+   * path to the first difference.
+   */
+  public String difference(Object got, Object expected) {
+    var event = new Events.Equivalent();
+    event.begin();
+    String d = comparer.difference(got, expected);
+    event.equivalent = d == null;
+    event.finish();
+    return d;
+  }
+
+  private static boolean isExact(Class<?> type) {
+    while (type.isArray()) {
+      type = type.getComponentType();
+    }
+    return type.isPrimitive() || Modifier.isFinal(type.getModifiers());
+  }
+
+  private static String anyDifference(Object got, Object expected) {
+    if (got == expected) {
+      return null;
+    } else if (got == null || expected == null) {
+      return "";
+    } else if (got.getClass() == expected.getClass()) {
+      return COMPARERS.get(expected.getClass()).difference(got, expected);
+    } else {
+      return mixedDifference(got, expected);
+    }
+  }
+
+  /*
+   * Values of different classes are still equivalent if they're both lists or
+   * both maps with equivalent contents, or numbers with the same value, e.g. a
+   * List.of inside an ArrayList or a Float compared with a Double. Otherwise
+   * they're different if the expected value's class is one only it can have,
+   * i.e. it's an array or final, and up to equals if not.
+   */
+  private static String mixedDifference(Object got, Object expected) {
+    if (got instanceof List<?> g && expected instanceof List<?> e) {
+      return elementsDifference(g, e, ANY, ".size()");
+    } else if (got instanceof Map<?, ?> g && expected instanceof Map<?, ?> e) {
+      return mapDifference(g, e);
+    } else if (isFloatingPoint(got) || isFloatingPoint(expected)) {
+      if (!isPrimitiveNumber(got) || !isPrimitiveNumber(expected)) return "";
+      double tolerance = got instanceof Float || expected instanceof Float ? FLOAT_TOLERANCE : DOUBLE_TOLERANCE;
+      return closeEnough(((Number) got).doubleValue(), ((Number) expected).doubleValue(), tolerance) ? null : "";
+    } else if (isPrimitiveNumber(got) && isPrimitiveNumber(expected)) {
+      return ((Number) got).longValue() == ((Number) expected).longValue() ? null : "";
+    } else if (expected.getClass().isArray() || Modifier.isFinal(expected.getClass().getModifiers())) {
+      return "";
+    } else {
+      return expected.equals(got) ? null : "";
+    }
+  }
+
+  private static boolean isFloatingPoint(Object o) {
+    return o instanceof Double || o instanceof Float;
+  }
+
+  // Boxed versions of the primitive number types.
+  private static boolean isPrimitiveNumber(Object o) {
+    return o instanceof Integer
+        || o instanceof Long
+        || o instanceof Double
+        || o instanceof Float
+        || o instanceof Short
+        || o instanceof Byte;
+  }
+
+  private static String checked(Comparer c, Object got, Object expected) {
+    if (got == expected) {
+      return null;
+    } else if (got == null || expected == null || got.getClass() != expected.getClass()) {
+      return "";
+    } else {
+      return c.difference(got, expected);
+    }
+  }
+
+  private static Comparer comparer(Class<?> type) {
+    if (type == int[].class) {
+      return (g, e) -> mismatch(Arrays.mismatch((int[]) g, (int[]) e), ((int[]) g).length, ((int[]) e).length);
+    } else if (type == long[].class) {
+      return (g, e) -> mismatch(Arrays.mismatch((long[]) g, (long[]) e), ((long[]) g).length, ((long[]) e).length);
+    } else if (type == short[].class) {
+      return (g, e) -> mismatch(Arrays.mismatch((short[]) g, (short[]) e), ((short[]) g).length, ((short[]) e).length);
+    } else if (type == char[].class) {
+      return (g, e) -> mismatch(Arrays.mismatch((char[]) g, (char[]) e), ((char[]) g).length, ((char[]) e).length);
+    } else if (type == byte[].class) {
+      return (g, e) -> mismatch(Arrays.mismatch((byte[]) g, (byte[]) e), ((byte[]) g).length, ((byte[]) e).length);
+    } else if (type == boolean[].class) {
+      return (g, e) -> mismatch(Arrays.mismatch((boolean[]) g, (boolean[]) e), ((boolean[]) g).length, ((boolean[]) e).length);
+    } else if (type == double[].class) {
+      return (g, e) -> doublesDifference((double[]) g, (double[]) e);
+    } else if (type == float[].class) {
+      return (g, e) -> floatsDifference((float[]) g, (float[]) e);
+    } else if (type.isArray()) {
+      Equivalence elements = forType(type.getComponentType());
+      return (g, e) -> elementsDifference(Arrays.asList((Object[]) g), Arrays.asList((Object[]) e), elements, ".length");
+    } else if (type == Double.class) {
+      return (g, e) -> closeEnough((Double) g, (Double) e, DOUBLE_TOLERANCE) ? null : "";
+    } else if (type == Float.class) {
+      return (g, e) -> closeEnough((Float) g, (Float) e, FLOAT_TOLERANCE) ? null : "";
+    } else if (List.class.isAssignableFrom(type)) {
+      return (g, e) -> elementsDifference((List<?>) g, (List<?>) e, ANY, ".size()");
+    } else if (Map.class.isAssignableFrom(type)) {
+      return (g, e) -> mapDifference((Map<?, ?>) g, (Map<?, ?>) e);
+    } else if (type.isRecord()) {
+      return recordComparer(type);
+    } else {
+      return (g, e) -> e.equals(g) ? null : "";
+    }
+  }
+
+  private static String mismatch(int i, int gotLength, int expectedLength) {
+    if (i == -1) {
+      return null;
+    } else if (i == Math.min(gotLength, expectedLength)) {
+      return ".length";
+    } else {
+      return "[" + i + "]";
+    }
+  }
+
+  private static boolean closeEnough(double got, double expected, double tolerance) {
+    if (got == expected || Double.compare(got, expected) == 0) {
+      // Values are exactly the same (or both NaN).
+      return true;
+    } else if (got == 0 || expected == 0) {
+      // If either is zero and the other is not that's a fail. (We need to
+      // avoid dividing by 0 in the next step.)
+      return false;
+    } else {
+      // Otherwise, make sure the relative error is small
+      return Math.abs((got - expected) / expected) < tolerance;
+    }
+  }
+
+  private static String doublesDifference(double[] got, double[] expected) {
+    int n = Math.min(got.length, expected.length);
+    for (int i = 0; i < n; i++) {
+      if (!closeEnough(got[i], expected[i], DOUBLE_TOLERANCE)) return "[" + i + "]";
+    }
+    return got.length == expected.length ? null : ".length";
+  }
+
+  private static String floatsDifference(float[] got, float[] expected) {
+    int n = Math.min(got.length, expected.length);
+    for (int i = 0; i < n; i++) {
+      if (!closeEnough(got[i], expected[i], FLOAT_TOLERANCE)) return "[" + i + "]";
+    }
+    return got.length == expected.length ? null : ".length";
+  }
+
+  private static String elementsDifference(
+      List<?> got, List<?> expected, Equivalence elements, String sizeName) {
+    int n = Math.min(got.size(), expected.size());
+    for (int i = 0; i < n; i++) {
+      String d = elements.comparer.difference(got.get(i), expected.get(i));
+      if (d != null) return "[" + i + "]" + d;
+    }
+    return got.size() == expected.size() ? null : sizeName;
+  }
+
+  private static String mapDifference(Map<?, ?> got, Map<?, ?> expected) {
+    for (Map.Entry<?, ?> e : expected.entrySet()) {
+      if (!got.containsKey(e.getKey())) {
+        return ".get(" + e.getKey() + ")";
+      }
+      String d = ANY.comparer.difference(got.get(e.getKey()), e.getValue());
+      if (d != null) return ".get(" + e.getKey() + ")" + d;
+    }
+    return got.size() == expected.size() ? null : ".size()";
+  }
+
+  private static Comparer recordComparer(Class<?> type) {
+    RecordComponent[] components = type.getRecordComponents();
+    Method[] accessors = new Method[components.length];
+    for (int i = 0; i < components.length; i++) {
+      accessors[i] = components[i].getAccessor();
+      accessors[i].trySetAccessible();
+    }
+    return (g, e) -> {
+      for (Method accessor : accessors) {
+        try {
+          String d = ANY.comparer.difference(accessor.invoke(g), accessor.invoke(e));
+          if (d != null) return "." + accessor.getName() + "()" + d;
+        } catch (ReflectiveOperationException roe) {
+          return e.equals(g) ? null : "";
+        }
+      }
+      return null;
+    };
+  }
+}
@@ -0,0 +1,195 @@
+package com.gigamonkeys.bhs.testing;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for each phase of grading a submission so when
+ * grading gets slow we can see whether the time is going to javac, class
+ * loading, generating test cases, the student code, comparing results,
+ * rendering values, or serializing JSON. Each event records the submission,
+ * tester, and method it was working on, taken from a per-thread context that
+ * follows the work onto other threads (see Parallel).
+ *
+ * The events cost next to nothing when JFR isn't recording them. To record:
+ *
+ *   java -XX:StartFlightRecording:filename=grading.jfr ...
+ *
+ * and look for the BHS category in JDK Mission Control or with jfr print
+ * --categories BHS.
+ */
+public final class Events {
+
+  private static final AtomicLong submissions = new AtomicLong();
+
+  /*
+   * What this thread is working on.
+   */
+  public record Context(String submission, String tester, String method) {}
+
+  private static final Context NONE = new Context(null, null, null);
+
+  private static final ThreadLocal<Context> context = ThreadLocal.withInitial(() -> NONE);
+
+  /**
+   * Restores the previous context when closed.
+   */
+  public interface Scope extends AutoCloseable {
+    void close();
+  }
+
+  private Events() {}
+
+  /**
+   * Start working on a new submission on this thread. The submission is named
+   * after the class being tested plus a number to tell different submissions
+   * of the same class apart.
+   */
+  public static void startSubmission(String className, String tester) {
+    context.set(new Context(className + "#" + submissions.incrementAndGet(), tester, null));
+  }
+
+  /**
+   * Work on the named method of the current submission until the scope is
+   * closed.
+   */
+  public static Scope method(String method) {
+    Context previous = context.get();
+    context.set(new Context(previous.submission(), previous.tester(), method));
+    return () -> context.set(previous);
+  }
+
+  public static Context current() {
+    return context.get();
+  }
+
+  /**
+   * Run the supplier on this thread in the given context.
+   */
+  public static <T> T using(Context c, Supplier<T> s) {
+    Context previous = context.get();
+    context.set(c);
+    try {
+      return s.get();
+    } finally {
+      context.set(previous);
+    }
+  }
+
+  /**
+   * The tester's testables, recording how long it took to get them.
+   */
+  public static List<Testable> testables(Tester tester) {
+    var event = new Testables();
+    event.begin();
+    List<Testable> testables = tester.testables();
+    event.count = testables.size();
+    event.finish();
+    return testables;
+  }
+
+  @Category("BHS")
+  @StackTrace(false)
+  abstract static class GradingEvent extends Event {
+    @Label("Submission")
+    String submission;
+
+    @Label("Tester")
+    String tester;
+
+    @Label("Method")
+    String method;
+
+    /**
+     * End the event and commit it with the current context if it's being
+     * recorded.
+     */
+    public void finish() {
+      end();
+      if (shouldCommit()) {
+        Context c = context.get();
+        submission = c.submission();
+        tester = c.tester();
+        if (method == null) method = c.method();
+        commit();
+      }
+    }
+  }
+
+  @Name("com.gigamonkeys.bhs.Compile")
+  @Label("Compile")
+  @Description("Compiling submitted source code")
+  public static class Compile extends GradingEvent {
+    @Label("Class")
+    public String className;
+
+    @Label("Succeeded")
+    public boolean succeeded;
+
+    @Label("Cached")
+    public boolean cached;
+  }
+
+  @Name("com.gigamonkeys.bhs.DefineClass")
+  @Label("Define Class")
+  @Description("Defining a compiled class in its class loader")
+  public static class DefineClass extends GradingEvent {
+    @Label("Class")
+    public String className;
+
+    @Label("Bytes")
+    public int bytes;
+  }
+
+  @Name("com.gigamonkeys.bhs.NewTester")
+  @Label("New Tester")
+  @Description("Constructing a Tester, usually including generating its test cases")
+  public static class NewTester extends GradingEvent {}
+
+  @Name("com.gigamonkeys.bhs.Testables")
+  @Label("Testables")
+  @Description("Getting the testables from a Tester")
+  public static class Testables extends GradingEvent {
+    @Label("Count")
+    public int count;
+  }
+
+  @Name("com.gigamonkeys.bhs.Case")
+  @Label("Test Case")
+  @Description("Running one test case, including the reference and student code")
+  public static class Case extends GradingEvent {
+    @Label("Case")
+    public String label;
+  }
+
+  @Name("com.gigamonkeys.bhs.Equivalent")
+  @Label("Equivalent")
+  @Description("Comparing a result with the expected value")
+  public static class Equivalent extends GradingEvent {
+    @Label("Equivalent")
+    public boolean equivalent;
+  }
+
+  @Name("com.gigamonkeys.bhs.Limited")
+  @Label("Limited")
+  @Description("Rendering a value as a limited length string")
+  public static class Limited extends GradingEvent {
+    @Label("Length")
+    public int length;
+  }
+
+  @Name("com.gigamonkeys.bhs.ToJson")
+  @Label("To JSON")
+  @Description("Serializing results as JSON")
+  public static class ToJson extends GradingEvent {
+    @Label("Characters")
+    public long characters;
+  }
+}
@@ -4,14 +4,95 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.SplittableRandom;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.DoubleStream;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
+/**
+ * Random test data. All the randomness comes from a per-thread SplittableRandom
+ * so generating cases on many threads at once doesn't contend on a single
+ * shared seed and so that a run can be reproduced: seed the current thread
+ * with the seed of the original run before loading and making the Tester and
+ * it will generate exactly the same cases. Work handed off to other threads
+ * (see Parallel) runs with seeds derived from the handing-off thread's seed so
+ * it too generates the same values however it's scheduled.
+ */
 public class Generator {
 
+  private static record Seeded(long seed, SplittableRandom random) {
+    Seeded(long seed) {
+      this(seed, new SplittableRandom(seed));
+    }
+  }
+
+  // Where threads that haven't been explicitly seeded get their seeds.
+  private static final SplittableRandom SEEDS = new SplittableRandom();
+
+  private static final ThreadLocal<Seeded> CURRENT = ThreadLocal.withInitial(() -> new Seeded(freshSeed()));
+
+  /**
+   * The source of randomness for the current thread.
+   */
+  public static SplittableRandom rng() {
+    return CURRENT.get().random();
+  }
+
+  /**
+   * The seed the current thread's randomness started from.
+   */
+  public static long seed() {
+    return CURRENT.get().seed();
+  }
+
+  /**
+   * Restart the current thread's randomness from the given seed.
+   */
+  public static long seed(long seed) {
+    CURRENT.set(new Seeded(seed));
+    return seed;
+  }
+
+  /**
+   * Run the supplier with the current thread's randomness starting from the
+   * given seed and then go back to the thread's own randomness.
+   */
+  public static <T> T using(long seed, Supplier<T> s) {
+    Seeded previous = CURRENT.get();
+    CURRENT.set(new Seeded(seed));
+    try {
+      return s.get();
+    } finally {
+      CURRENT.set(previous);
+    }
+  }
+
+  /**
+   * Seed for the index'th piece of work split off from the current thread.
+   * Depends only on the current thread's seed and the index.
+   */
+  public static long seedFor(int index) {
+    long base = new SplittableRandom(seed()).nextLong();
+    return new SplittableRandom(base + index).nextLong(1L << 53);
+  }
+
+  /**
+   * Restart the current thread's randomness from a new seed, returning it.
+   */
+  public static long reseed() {
+    return seed(freshSeed());
+  }
+
+  private static long freshSeed() {
+    synchronized (SEEDS) {
+      // Keep seeds within the range of integers a JavaScript number can
+      // represent exactly since they end up in JSON.
+      return SEEDS.nextLong(1L << 53);
+    }
+  }
+
   public static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz";
 
   public static final String[] WORDS = {
@@ -22,18 +103,18 @@ public class Generator {
   public static final String[] OTHER_WORDS = {"FISH", "FROG", "TURTLE", "EGG", "MARKER"};
 
   public static char randomChar() {
-    return ALPHABET.charAt((int) (Math.random() * ALPHABET.length()));
+    return ALPHABET.charAt((int) (rng().nextDouble() * ALPHABET.length()));
   }
 
   public static char randomOtherCharacter(int c) {
     while (true) {
-      char o = ALPHABET.charAt((int) (Math.random() * ALPHABET.length()));
+      char o = ALPHABET.charAt((int) (rng().nextDouble() * ALPHABET.length()));
       if (o != c) return o;
     }
   }
 
   public static String randomWord() {
-    if (Math.random() < 0.5) {
+    if (rng().nextDouble() < 0.5) {
       return randomElement(WORDS);
     } else {
       return randomElement(OTHER_WORDS);
@@ -41,26 +122,26 @@ public class Generator {
   }
 
   public static int randomCase(int c) {
-    return Math.random() < 0.5 ? Character.toUpperCase(c) : Character.toLowerCase(c);
+    return rng().nextDouble() < 0.5 ? Character.toUpperCase(c) : Character.toLowerCase(c);
   }
 
   public static String randomCase(String s) {
-    return s.codePoints()
-        .map(Generator::randomCase)
-        .mapToObj(Character::toString)
-        .collect(Collectors.joining());
+    var r = rng();
+    var sb = new StringBuilder(s.length());
+    for (int i = 0; i < s.length(); ) {
+      int c = s.codePointAt(i);
+      sb.appendCodePoint(r.nextDouble() < 0.5 ? Character.toUpperCase(c) : Character.toLowerCase(c));
+      i += Character.charCount(c);
+    }
+    return sb.toString();
   }
 
   public static String maybePlural(String s) {
-    return Math.random() < 0.5 ? s : s + "s";
+    return rng().nextDouble() < 0.5 ? s : s + "s";
   }
 
   public static String string(int min, int max) {
-    char[] chars = new char[between(min, max)];
-    for (int i = 0; i < chars.length; i++) {
-      chars[i] = randomChar();
-    }
-    return new String(chars);
+    return new String(fillChars(new char[between(min, max)], ALPHABET));
   }
 
   public static Stream<String> strings(int min, int max) {
@@ -83,12 +164,12 @@ public class Generator {
 
   public static Stream<String> maybePalindromes(int min, int max) {
     return Stream.generate(
-        () -> Math.random() < 0.5 ? string(min, max) : palindrome(string(min, max / 2)));
+        () -> rng().nextDouble() < 0.5 ? string(min, max) : palindrome(string(min, max / 2)));
   }
 
   public static Stream<int[]> maybeIntsPalindromes(int min, int max) {
     return Stream.generate(
-        () -> Math.random() < 0.5 ? randomInts(min, max) : palindromeInts(min, max));
+        () -> rng().nextDouble() < 0.5 ? randomInts(min, max) : palindromeInts(min, max));
   }
 
   public static ArrayList<String> randomStrings(String letters, int size) {
@@ -102,9 +183,7 @@ public class Generator {
   }
 
   public static String randomString(String letters, int min, int max) {
-    return IntStream.range(0, min + random(max - min))
-        .mapToObj(i -> randomLetter(letters))
-        .collect(Collectors.joining());
+    return new String(fillChars(new char[min + random(max - min)], letters));
   }
 
   public static String randomSubstring(String s) {
@@ -129,12 +208,12 @@ public class Generator {
     for (int i = 0; i < num; i++) {
       s.add("x");
     }
-    Collections.shuffle(s);
+    Collections.shuffle(s, rng());
     return s.stream().collect(Collectors.joining());
   }
 
   public static int random(int min, int max) {
-    return min + (int) (Math.random() * (max - min));
+    return min + (int) (rng().nextDouble() * (max - min));
   }
 
   public static int random(int max) {
@@ -142,15 +221,15 @@ public class Generator {
   }
 
   public static int randomInt(int limit) {
-    return (int) (Math.random() * limit);
+    return (int) (rng().nextDouble() * limit);
   }
 
   public static int randomSign() {
-    return Math.random() < 0.5 ? 1 : -1;
+    return rng().nextDouble() < 0.5 ? 1 : -1;
   }
 
   public static int[] randomInts(int size) {
-    return IntStream.range(0, size).map(i -> (int) (Math.random() * 100)).toArray();
+    return fillInts(new int[size], 0, 100);
   }
 
   public static int[] randomInts(int minLen, int maxLen) {
@@ -158,35 +237,74 @@ public class Generator {
   }
 
   public static int[] randomInts(int minLen, int maxLen, int min, int max) {
+    // Same values between(min, max) would give, which rounds toward zero
+    // rather than down when the range is negative, but without looking up the
+    // rng for each one.
     int[] ns = new int[between(minLen, maxLen)];
+    var r = rng();
     for (int i = 0; i < ns.length; i++) {
-      ns[i] = between(min, max);
+      ns[i] = (int) (min + (r.nextDouble() * ((double) max - min)));
     }
     return ns;
   }
 
   public static ArrayList<Integer> randomList(int size) {
-    return IntStream.range(0, size)
-        .map(i -> (int) (Math.random() * 100))
-        .boxed()
-        .collect(Collectors.toCollection(ArrayList<Integer>::new));
+    return randomListOfIntegers(size, 0, 100);
   }
 
   public static ArrayList<Integer> randomList(int min, int max) {
-    return IntStream.range(0, random(min, max))
-        .map(i -> (int) (Math.random() * 100))
-        .boxed()
-        .collect(Collectors.toCollection(ArrayList<Integer>::new));
+    return randomListOfIntegers(random(min, max), 0, 100);
   }
 
+  /**
+   * List of size random integers in [min, max). Builds the list directly
+   * rather than through a stream since this is used for very large inputs.
+   */
   public static ArrayList<Integer> randomListOfIntegers(int size, int min, int max) {
-    return Stream.generate(() -> random(min, max))
-        .limit(size)
-        .collect(Collectors.toCollection(ArrayList::new));
+    var r = rng();
+    var list = new ArrayList<Integer>(size);
+    for (int i = 0; i < size; i++) {
+      list.add(min + (int) (r.nextDouble() * (max - min)));
+    }
+    return list;
+  }
+
+  /**
+   * Fill the array with random ints in [min, max) and return it.
+   */
+  public static int[] fillInts(int[] ns, int min, int max) {
+    var r = rng();
+    for (int i = 0; i < ns.length; i++) {
+      ns[i] = min + (int) (r.nextDouble() * (max - min));
+    }
+    return ns;
+  }
+
+  /**
+   * Fill the array with random doubles in [min, max) and return it.
+   */
+  public static double[] fillDoubles(double[] ds, double min, double max) {
+    var r = rng();
+    for (int i = 0; i < ds.length; i++) {
+      ds[i] = min + r.nextDouble() * (max - min);
+    }
+    return ds;
+  }
+
+  /**
+   * Fill the array with characters chosen at random from letters and return
+   * it.
+   */
+  public static char[] fillChars(char[] cs, String letters) {
+    var r = rng();
+    for (int i = 0; i < cs.length; i++) {
+      cs[i] = letters.charAt(r.nextInt(letters.length()));
+    }
+    return cs;
   }
 
   public static Stream<ArrayList<String>> randomStrings(int num, String[] words) {
-    return Stream.generate(() -> randomListOfStrings((int) (Math.random() * 10), words)).limit(num);
+    return Stream.generate(() -> randomListOfStrings((int) (rng().nextDouble() * 10), words)).limit(num);
   }
 
   public static String[] randomWords(int size, String[] words) {
@@ -221,14 +339,14 @@ public class Generator {
   }
 
   public static boolean randomBoolean() {
-    return Math.random() < 0.5;
+    return rng().nextDouble() < 0.5;
   }
 
   public static boolean[][] randomBooleanGrid(int rows, int cols) {
     boolean[][] grid = new boolean[rows][cols];
     for (int i = 0; i < rows; i++) {
       for (int j = 0; j < cols; j++) {
-        grid[i][j] = Math.random() < 0.5;
+        grid[i][j] = rng().nextDouble() < 0.5;
       }
     }
     return grid;
@@ -245,15 +363,15 @@ public class Generator {
   }
 
   public static <T> T randomElement(T[] ts) {
-    return ts[(int) (Math.random() * ts.length)];
+    return ts[(int) (rng().nextDouble() * ts.length)];
   }
 
   public static <T> T randomElement(List<T> ts) {
-    return ts.get((int) (Math.random() * ts.size()));
+    return ts.get((int) (rng().nextDouble() * ts.size()));
   }
 
   public static int randomElement(int[] ints) {
-    return ints[(int) (Math.random() * ints.length)];
+    return ints[(int) (rng().nextDouble() * ints.length)];
   }
 
   public static <T> T randomElementNot(T[] ts, T exclude) {
@@ -324,12 +442,12 @@ public class Generator {
   }
 
   public static double doubleBetween(double min, double max) {
-    return min + (Math.random() * (max - min));
+    return min + (rng().nextDouble() * (max - min));
   }
 
   public static <T> T[] permute(T[] ts) {
     List<T> copy = new ArrayList<>(Arrays.asList(ts));
-    Collections.shuffle(copy);
+    Collections.shuffle(copy, rng());
     return copy.toArray(Arrays.copyOf(ts, 0));
   }
 
@@ -341,17 +459,13 @@ public class Generator {
     var list = new ArrayList<>(Arrays.asList(words));
     return Stream.generate(
         () -> {
-          Collections.shuffle(list);
+          Collections.shuffle(list, rng());
           return String.join(" ", list);
         });
   }
 
   public static double[] randomDoubles(int min, int max) {
-    double[] ds = new double[between(min, max)];
-    for (int i = 0; i < ds.length; i++) {
-      ds[i] = doubleBetween(-100.0, 100.0);
-    }
-    return ds;
+    return fillDoubles(new double[between(min, max)], -100.0, 100.0);
   }
 
   public static Stream<double[]> doubles(int min, int max) {
@@ -363,31 +477,19 @@ public class Generator {
   }
 
   public static DoubleStream percentages() {
-    return DoubleStream.generate(() -> Math.random());
+    return DoubleStream.generate(() -> rng().nextDouble());
   }
 
   public static int[] smallDigits(int size) {
-    int[] ds = new int[size];
-    for (int i = 0; i < ds.length; i++) {
-      ds[i] = (int) (Math.random() * 4);
-    }
-    return ds;
+    return fillInts(new int[size], 0, 4);
   }
 
   public static int[] digits(int size) {
-    int[] ds = new int[size];
-    for (int i = 0; i < ds.length; i++) {
-      ds[i] = (int) (Math.random() * 10);
-    }
-    return ds;
+    return fillInts(new int[size], 0, 10);
   }
 
   public static int[] numbers(int size, int min, int max) {
-    int[] ns = new int[size];
-    for (int i = 0; i < ns.length; i++) {
-      ns[i] = min + (int) (Math.random() * (max - min));
-    }
-    return ns;
+    return fillInts(new int[size], min, max);
   }
 
   public static Object[][] tk() {
@@ -0,0 +1,186 @@
+package com.gigamonkeys.bhs.testing;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Keeps student code from using more than its share of memory and CPU. Wall
+ * clock timeouts don't catch code that builds an enormous ArrayList or string
+ * in a hurry and pushes the whole JVM into GC thrash, slowing down everyone
+ * else's grading. So while a call is running under the Watchdog we sample how
+ * many bytes the thread running it has allocated and how much CPU time it has
+ * used and stop the call, the same way as a timeout, once it goes over its
+ * limit.
+ *
+ * Stopping only really stops instrumented code, which checks for it at every
+ * step (see StepBudget.Stop); student classes are instrumented whenever any
+ * limit is set. Anything else, e.g. a library call that's building a huge
+ * string, is just interrupted and abandoned: the grader gets LimitExceeded
+ * right away but the call keeps running in the background, still using
+ * memory and CPU, until it finishes on its own.
+ *
+ * There are limits per call and per submission. Each submission (see
+ * TestRunner.tester) gets its own Governor which follows its work onto other
+ * threads (see Parallel). The limits come from the bhs.governor.caseBytes,
+ * bhs.governor.caseCpuMillis, bhs.governor.submissionBytes, and
+ * bhs.governor.submissionCpuMillis properties; zero or unset means no limit.
+ * Samples are taken every bhs.governor.intervalMillis (default 10).
+ */
+public final class Governor {
+
+  private static final long CASE_BYTES = Long.getLong("bhs.governor.caseBytes", 0);
+  private static final long CASE_CPU_NANOS = Long.getLong("bhs.governor.caseCpuMillis", 0) * 1_000_000;
+  private static final long SUBMISSION_BYTES = Long.getLong("bhs.governor.submissionBytes", 0);
+  private static final long SUBMISSION_CPU_NANOS =
+      Long.getLong("bhs.governor.submissionCpuMillis", 0) * 1_000_000;
+
+  private static final long INTERVAL_MILLIS = Long.getLong("bhs.governor.intervalMillis", 10);
+
+  private static final com.sun.management.ThreadMXBean threads = threads();
+
+  private static final ThreadLocal<Governor> current = new ThreadLocal<>();
+
+  // What the submission's finished calls have used so far.
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicLong cpuNanos = new AtomicLong();
+
+  /**
+   * Thrown when a call goes over one of the limits.
+   */
+  public static class LimitExceeded extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    LimitExceeded(String message) {
+      super(message);
+    }
+  }
+
+  /*
+   * One call being watched. The thread running the call records where it
+   * started from; the thread waiting for it checks how it's doing.
+   */
+  final class Watch {
+    private volatile Thread thread;
+    private long startBytes;
+    private long startCpu;
+
+    // Called on the thread running the call, before it starts.
+    void begin() {
+      startBytes = threads.getCurrentThreadAllocatedBytes();
+      startCpu = threads.getCurrentThreadCpuTime();
+      thread = Thread.currentThread();
+    }
+
+    /*
+     * Why the call should be stopped or null if it's fine.
+     */
+    String over() {
+      Thread t = thread;
+      if (t == null) return null;
+      long usedBytes = Math.max(0, threads.getThreadAllocatedBytes(t.threadId()) - startBytes);
+      long usedCpu = Math.max(0, threads.getThreadCpuTime(t.threadId()) - startCpu);
+      return check(usedBytes, usedCpu);
+    }
+
+    // Called on the waiting thread once the call is done or abandoned.
+    void end() {
+      Thread t = thread;
+      if (t == null) return;
+      bytes.addAndGet(Math.max(0, threads.getThreadAllocatedBytes(t.threadId()) - startBytes));
+      cpuNanos.addAndGet(Math.max(0, threads.getThreadCpuTime(t.threadId()) - startCpu));
+    }
+  }
+
+  private Governor() {}
+
+  private static com.sun.management.ThreadMXBean threads() {
+    if (CASE_BYTES <= 0 && CASE_CPU_NANOS <= 0 && SUBMISSION_BYTES <= 0 && SUBMISSION_CPU_NANOS <= 0) {
+      return null;
+    }
+    if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean
+        && bean.isThreadCpuTimeSupported()
+        && bean.isThreadAllocatedMemorySupported()) {
+      bean.setThreadCpuTimeEnabled(true);
+      bean.setThreadAllocatedMemoryEnabled(true);
+      return bean;
+    } else {
+      System.err.println("Can't govern CPU time and allocation in this JVM.");
+      return null;
+    }
+  }
+
+  /**
+   * Whether any limits are being enforced.
+   */
+  public static boolean enabled() {
+    return threads != null;
+  }
+
+  public static long intervalMillis() {
+    return INTERVAL_MILLIS;
+  }
+
+  /**
+   * Start governing a new submission on this thread.
+   */
+  public static void start() {
+    if (enabled()) {
+      current.set(new Governor());
+    }
+  }
+
+  /**
+   * The Governor for whatever submission this thread is working on, if any.
+   */
+  public static Governor current() {
+    return current.get();
+  }
+
+  /**
+   * Run the supplier on this thread as part of the given submission.
+   */
+  public static <T> T using(Governor governor, Supplier<T> s) {
+    Governor previous = current.get();
+    current.set(governor);
+    try {
+      return s.get();
+    } finally {
+      current.set(previous);
+    }
+  }
+
+  /**
+   * A new Watch for a call made on behalf of this thread's submission, or null
+   * if we're not governing. Throws LimitExceeded straight away if the
+   * submission has already used up its budget.
+   */
+  static Watch watch() {
+    if (!enabled()) return null;
+    Governor g = current.get();
+    if (g == null) {
+      // Not started explicitly so everything on this thread is one submission.
+      g = new Governor();
+      current.set(g);
+    }
+    String over = g.check(0, 0);
+    if (over != null) {
+      throw new LimitExceeded(over);
+    }
+    return g.new Watch();
+  }
+
+  private String check(long usedBytes, long usedCpu) {
+    if (CASE_BYTES > 0 && usedBytes > CASE_BYTES) {
+      return "Allocated more than " + CASE_BYTES + " bytes in one call";
+    } else if (CASE_CPU_NANOS > 0 && usedCpu > CASE_CPU_NANOS) {
+      return "Used more than " + CASE_CPU_NANOS / 1_000_000 + " ms of CPU in one call";
+    } else if (SUBMISSION_BYTES > 0 && bytes.get() + usedBytes > SUBMISSION_BYTES) {
+      return "Allocated more than " + SUBMISSION_BYTES + " bytes in all";
+    } else if (SUBMISSION_CPU_NANOS > 0 && cpuNanos.get() + usedCpu > SUBMISSION_CPU_NANOS) {
+      return "Used more than " + SUBMISSION_CPU_NANOS / 1_000_000 + " ms of CPU in all";
+    } else {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package com.gigamonkeys.bhs.testing;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.Supplier;
+
+/**
+ * Measures the cost of a call. The measuring has to happen on the thread that
+ * actually runs the code so wrap the call in measure inside any Watchdog call,
+ * then ask for the cost afterwards.
+ *
+ * Steps are counted when there's a step budget (see StepBudget). CPU time and
+ * allocated bytes are measured when the bhs.measure property is true and the
+ * JVM supports it.
+ *
+ * A meter can also total up the calls Reflector makes on behalf of a thread,
+ * for testers that call student code themselves (see SimpleTestable).
+ */
+public class Meter {
+
+  private static final com.sun.management.ThreadMXBean threads = threads();
+
+  private static final ThreadLocal<Meter> total = new ThreadLocal<>();
+
+  private final boolean countSteps;
+  private long steps;
+  private long cpuNanos;
+  private long allocatedBytes;
+  private int calls;
+
+  /**
+   * Meter for student code, counting steps if we're counting them at all.
+   */
+  public Meter() {
+    this(true);
+  }
+
+  /**
+   * Meter that doesn't count steps, e.g. for code that isn't instrumented
+   * such as the reference solutions.
+   */
+  public Meter(boolean countSteps) {
+    this.countSteps = countSteps && StepBudget.enabled();
+  }
+
+  // The bean if we're measuring and can, otherwise null.
+  private static com.sun.management.ThreadMXBean threads() {
+    if (!Boolean.getBoolean("bhs.measure")) return null;
+    if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean
+        && bean.isCurrentThreadCpuTimeSupported()
+        && bean.isThreadAllocatedMemorySupported()) {
+      bean.setThreadCpuTimeEnabled(true);
+      bean.setThreadAllocatedMemoryEnabled(true);
+      return bean;
+    } else {
+      System.err.println("Can't measure CPU time and allocation in this JVM.");
+      return null;
+    }
+  }
+
+  /**
+   * Whether we're measuring CPU time and allocated bytes.
+   */
+  public static boolean measuring() {
+    return threads != null;
+  }
+
+  /**
+   * Make the call, measuring what it costs.
+   */
+  public <T> T measure(Watchdog.Call<T> c) throws Throwable {
+    StepBudget.Saved saved = countSteps ? StepBudget.arm() : null;
+    long cpuBefore = threads != null ? threads.getCurrentThreadCpuTime() : 0;
+    long allocatedBefore = threads != null ? threads.getCurrentThreadAllocatedBytes() : 0;
+    try {
+      return c.call();
+    } finally {
+      if (countSteps) steps = StepBudget.disarm(saved);
+      if (threads != null) {
+        cpuNanos = threads.getCurrentThreadCpuTime() - cpuBefore;
+        allocatedBytes = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+      }
+    }
+  }
+
+  /**
+   * Run the supplier with this meter totaling the cost of the calls Reflector
+   * makes for the current thread.
+   */
+  public <T> T totaling(Supplier<T> s) {
+    Meter previous = total.get();
+    total.set(this);
+    try {
+      return s.get();
+    } finally {
+      total.set(previous);
+    }
+  }
+
+  /**
+   * The meter totaling calls made for the current thread, or null.
+   */
+  public static Meter total() {
+    return total.get();
+  }
+
+  /**
+   * Add the cost of the other meter's last measured call to this meter's
+   * total. Called on the thread that made the call which, for a call that was
+   * abandoned, may be after we've stopped looking.
+   */
+  synchronized void add(Meter other) {
+    steps += other.steps;
+    cpuNanos += other.cpuNanos;
+    allocatedBytes += other.allocatedBytes;
+    calls++;
+  }
+
+  /**
+   * Number of calls added to this meter's total.
+   */
+  synchronized int calls() {
+    return calls;
+  }
+
+  /**
+   * The cost of the last measured call, or the total, or null if we're not
+   * measuring anything.
+   */
+  public Cost cost() {
+    return cost(null);
+  }
+
+  /**
+   * Like cost() but including the cost measured by the reference meter.
+   */
+  public synchronized Cost cost(Meter reference) {
+    Cost referenceCost = reference != null ? reference.cost() : null;
+    if (!countSteps && threads == null && referenceCost == null) {
+      return null;
+    } else {
+      return new Cost(
+          countSteps ? steps : null,
+          threads != null ? cpuNanos : null,
+          threads != null ? allocatedBytes : null,
+          referenceCost);
+    }
+  }
+}
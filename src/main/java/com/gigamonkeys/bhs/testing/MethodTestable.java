@@ -3,124 +3,511 @@ package com.gigamonkeys.bhs.testing;
 import static com.gigamonkeys.bhs.testing.Utils.*;
 
 import com.gigamonkeys.bhs.Either;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.function.Function;
 
-/** Testable that tests a single method against testcases. */
+/**
+ * Testable that tests a single method against testcases. The method is one
+ * from the test interface and the reference object must implement it. The
+ * test object need not implement the interface (it usually doesn't) but
+ * should have a method with the same name and parameter types.
+ */
 public class MethodTestable implements Testable {
 
+  // Both handles take the arguments as an Object[] and return an Object (null
+  // for void methods) and are already bound to the object to invoke on so
+  // each test case is just an invokeExact without any reflective lookup,
+  // access checks, or trip through a Proxy.
+  private static final MethodType INVOKER_TYPE = MethodType.methodType(Object.class, Object[].class);
+
+  /*
+   * How we keep the student and reference methods from seeing each other's
+   * changes to the arguments. Copying large generated arrays twice per case
+   * is expensive so we only do it when we have to.
+   */
+  private enum Copying {
+    // All the arguments are immutable.
+    NONE,
+    // Haven't run a case yet so we don't know if the reference method mutates
+    // its arguments. Copy for the student and fingerprint to find out. Only
+    // for cases we can fetch again, e.g. from a CasePack, since the reference
+    // runs on the originals.
+    UNVERIFIED,
+    // Reference method hasn't mutated its arguments so both methods can use
+    // the originals. Keep fingerprinting in case that changes, in which case
+    // we fetch the case again to get the original arguments back.
+    VERIFIED,
+    // Void method, mutation seen, arguments we can't fingerprint, or cases
+    // shared with the tester (which may keep them for the life of the JVM)
+    // that nobody may change.
+    ALWAYS
+  }
+
   private final Method method;
-  private final Object proxy;
-  private final Object referenceObject;
-  private final Map<String, Object[][]> tests;
+  private final int[] mutableArgs;
+  // Volatile since cases of pure methods can run in parallel. (Once we're
+  // running in parallel the only possible change is to ALWAYS.)
+  private volatile Copying copying;
+  private final Equivalence equivalence;
+  private final boolean pure;
+  private final Object testObject;
+  private final Class<?> referenceClass;
+  private final Method studentTarget;
+  private final MethodHandle studentMethod;
+  private final MethodHandle referenceMethod;
+  private final Function<String, List<Object[]>> tests;
+  // Identifies the version of the assignment the cases come from so a
+  // snapshot recorded from one version is never used with another.
+  private final Function<String, String> casesKey;
   private final Map<String, Function<Object[], String>> labelers;
   private final Map<String, SpecialCheck> specialChecks;
 
   public MethodTestable(
       Method method,
-      Object proxy,
+      Object testObject,
       Object referenceObject,
       Map<String, Object[][]> tests,
       Map<String, Function<Object[], String>> labelers,
       Map<String, SpecialCheck> specialChecks) {
+    this(
+        method,
+        testObject,
+        referenceObject,
+        name -> asList(tests.get(name)),
+        casesKey(Snapshot.enabled() ? caller() : null),
+        false,
+        labelers,
+        specialChecks);
+  }
+
+  /**
+   * Test against the cases in a case pack, decoding each one as it's needed.
+   */
+  public MethodTestable(
+      Method method,
+      Object testObject,
+      Object referenceObject,
+      CasePack pack,
+      Map<String, Function<Object[], String>> labelers,
+      Map<String, SpecialCheck> specialChecks) {
+    this(method, testObject, referenceObject, pack::cases, name -> pack.hash(), true, labelers, specialChecks);
+  }
+
+  private MethodTestable(
+      Method method,
+      Object testObject,
+      Object referenceObject,
+      Function<String, List<Object[]>> tests,
+      Function<String, String> casesKey,
+      boolean freshCases,
+      Map<String, Function<Object[], String>> labelers,
+      Map<String, SpecialCheck> specialChecks) {
     this.method = method;
     this.method.setAccessible(true);
+    this.mutableArgs = mutableArgs(method.getParameterTypes());
+    this.copying = initialCopying(method, mutableArgs, freshCases);
+    // Void methods are checked by comparing the arguments after the call.
+    this.equivalence =
+        Equivalence.forType(method.getReturnType() == void.class ? Object[].class : method.getReturnType());
 
-    this.proxy = proxy;
-    this.referenceObject = referenceObject;
+    this.pure = method.isAnnotationPresent(Pure.class);
+    this.testObject = testObject;
+    this.referenceClass = referenceObject.getClass();
+    this.studentTarget = studentMethod(method, testObject);
+    this.studentMethod = invoker(studentTarget, testObject);
+    this.referenceMethod = invoker(method, referenceObject);
     this.tests = tests;
+    this.casesKey = casesKey;
     this.labelers = labelers;
     this.specialChecks = specialChecks;
   }
 
+  // Generated cases change with the seed, which is new on every request, so
+  // key on the version of the tester that generates them. The snapshot
+  // replays the cases it was recorded with.
+  private static Function<String, String> casesKey(Class<?> tester) {
+    return name -> tester != null ? Snapshot.version(tester) : "";
+  }
+
+  // The class, normally a Tester, that asked for this testable: the first one
+  // on the stack that isn't us, Testable, or the JDK.
+  private static Class<?> caller() {
+    return StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE)
+        .walk(
+            frames ->
+                frames
+                    .map(StackWalker.StackFrame::getDeclaringClass)
+                    .filter(c -> c != MethodTestable.class && c != Testable.class && !c.getName().startsWith("java."))
+                    .findFirst()
+                    .orElse(MethodTestable.class));
+  }
+
+  private static List<Object[]> asList(Object[][] testcases) {
+    return testcases != null ? Arrays.asList(testcases) : null;
+  }
+
+  // Find the method on the test object's class that corresponds to the
+  // interface method. If there isn't one but the object actually implements
+  // the interface (e.g. it's a proxy) we can just use the interface method.
+  static Method studentMethod(Method m, Object testObject) {
+    Method studentMethod = ClassInfo.of(testObject.getClass()).method(m.getName(), m.getParameterTypes());
+    if (studentMethod != null) {
+      return studentMethod;
+    } else if (m.getDeclaringClass().isInstance(testObject)) {
+      return m;
+    } else {
+      throw new IllegalArgumentException("No method " + m.getName() + " in " + testObject.getClass());
+    }
+  }
+
+  private static int[] mutableArgs(Class<?>[] types) {
+    int[] indices = new int[types.length];
+    int n = 0;
+    for (int i = 0; i < types.length; i++) {
+      if (!isImmutable(types[i])) indices[n++] = i;
+    }
+    return Arrays.copyOf(indices, n);
+  }
+
+  // freshCases says whether getting a case from the list of cases returns new
+  // arrays every time, as with a CasePack, so we can always get the original
+  // arguments back.
+  private static Copying initialCopying(Method m, int[] mutableArgs, boolean freshCases) {
+    if (mutableArgs.length == 0) {
+      return Copying.NONE;
+    } else if (m.getReturnType() == void.class || !freshCases) {
+      return Copying.ALWAYS;
+    } else {
+      for (int i : mutableArgs) {
+        if (!isFingerprintable(m.getGenericParameterTypes()[i])) return Copying.ALWAYS;
+      }
+      return Copying.UNVERIFIED;
+    }
+  }
+
+  static MethodHandle invoker(Method m, Object obj) {
+    try {
+      MethodHandle h = MethodHandles.lookup().unreflect(m);
+      if (!Modifier.isStatic(m.getModifiers())) {
+        h = h.bindTo(obj);
+      }
+      return h.asSpreader(Object[].class, m.getParameterCount()).asType(INVOKER_TYPE);
+    } catch (IllegalAccessException iae) {
+      throw new Error(iae);
+    }
+  }
+
   public String name() {
     return method.getName();
   }
 
+  /**
+   * Pure methods are tested on their own instances of the student class so
+   * they can run alongside other testables. Every case of a concurrent
+   * testable runs on such an instance, never on the shared test object.
+   */
+  public boolean concurrent() {
+    return pure && Parallel.enabled();
+  }
+
   public TestResult[] results() throws Exception {
-    var r = new Results();
-    var testcases = tests.get(name());
+    Events.Scope scope = Events.method(name());
+    try {
+      String key = Snapshot.enabled() ? casesKey.apply(name()) : "";
+      var snapshot = Snapshot.load(referenceClass, method, key);
+      if (snapshot.isPresent()) {
+        return snapshotResults(snapshot.get(), concurrent() ? freshStudentMethod() : studentMethod);
+      }
 
-    if (testcases != null) {
-      for (Object[] args : testcases) {
-        String label = getLabel(name(), args);
-        Object[] gotArgs = (Object[]) deepArrayCopy(args);
-        Object[] expectedArgs = (Object[]) deepArrayCopy(args);
-        boolean isVoid = method.getReturnType() == void.class;
+      var testcases = tests.apply(name());
+      if (testcases == null) {
+        throw new Error("No tests for " + name());
+      }
 
+      if (concurrent() && testcases.size() > 1 && !Snapshot.recording()) {
+        return parallelResults(testcases);
+      }
+
+      var r = new Results();
+      var recording = Snapshot.recording() ? new Snapshot.Builder() : null;
+      MethodHandle student = concurrent() ? freshStudentMethod() : studentMethod;
+      for (int i = 0; i < testcases.size(); i++) {
+        runCase(r, testcases, i, student, recording);
+      }
+      if (recording != null) {
+        recording.build().save(referenceClass, method, key);
+      }
+      return r.results();
+    } finally {
+      scope.close();
+    }
+  }
+
+  /*
+   * Run just the student method against the cases and expected values from a
+   * snapshot. The snapshot is shared with other submissions so the student
+   * gets a copy of any arguments it could change.
+   */
+  private TestResult[] snapshotResults(Snapshot snapshot, MethodHandle student) throws Exception {
+    var r = new Results();
+    for (int i = 0; i < snapshot.args().length; i++) {
+      Object[] args = copy(snapshot.args()[i]);
+      String label = getLabel(name(), args);
+      var event = new Events.Case();
+      event.begin();
+      event.label = label;
+      try {
+        Meter meter = new Meter();
+        Either<Throwable, Object> eitherGot = invokeStudent(student, args, meter);
         Object got;
-        Object expected;
-        boolean exception = false;
-
-        if (!isVoid) {
-          Either<Throwable, Object> eitherGot = invokeMethodWithException(method, proxy, gotArgs);
-          if (eitherGot.isRight()) {
-            got = eitherGot.getRight();
-
-            var specialCheck = specialChecks.get(name());
-            if (specialCheck != null) {
-              r.add(
-                  label + specialCheck.label(),
-                  specialCheck.expected(),
-                  specialCheck.got(got, gotArgs),
-                  specialCheck.passed(got, gotArgs));
-            }
-
-          } else {
-            got = eitherGot.getLeft();
-            exception = true;
-          }
-          // FIXME: possibly should handle expected exceptions?
-          expected = method.invoke(referenceObject, expectedArgs);
+        if (eitherGot.isLeft()) {
+          got = eitherGot.getLeft();
+        } else if (method.getReturnType() == void.class) {
+          got = args;
         } else {
-          // void method we assume are intended to modify their arguments in
-          // some way so we check whether the arguments we passed to each
-          // version of the method are equivalent.
-          method.invoke(proxy, gotArgs);
-          method.invoke(referenceObject, expectedArgs);
-          got = gotArgs;
-          expected = expectedArgs;
+          got = eitherGot.getRight();
+          specialCheck(r, label, got, args);
         }
+        report(r, label, got, snapshot.expected()[i], eitherGot.isLeft(), meter.cost());
+      } finally {
+        event.finish();
+      }
+    }
+    return r.results();
+  }
+
+  /*
+   * Run the cases for a pure method in chunks, one per worker, each with its
+   * own instance of the student class. We run the first case by itself, also
+   * on its own instance, to find out whether we need to copy arguments before
+   * going parallel.
+   */
+  private TestResult[] parallelResults(List<Object[]> testcases) throws Exception {
+    var first = new Results();
+    runCase(first, testcases, 0, freshStudentMethod(), null);
+
+    int n = testcases.size() - 1;
+    int chunkSize = (n + Parallel.parallelism() - 1) / Parallel.parallelism();
+    List<List<Object[]>> chunks = new ArrayList<>();
+    for (int i = 1; i < testcases.size(); i += chunkSize) {
+      chunks.add(testcases.subList(i, Math.min(i + chunkSize, testcases.size())));
+    }
+
+    List<TestResult> all = new ArrayList<>(Arrays.asList(first.results()));
+    for (TestResult[] results : Parallel.map(chunks, this::runChunk)) {
+      all.addAll(Arrays.asList(results));
+    }
+    return all.toArray(new TestResult[0]);
+  }
+
+  private TestResult[] runChunk(List<Object[]> chunk) throws Exception {
+    var r = new Results();
+    MethodHandle student = freshStudentMethod();
+    for (int i = 0; i < chunk.size(); i++) {
+      runCase(r, chunk, i, student, null);
+    }
+    return r.results();
+  }
+
+  // Handle bound to a new instance of the student's class if we can make one.
+  // The constructor is student code too so it runs under the watchdog.
+  private MethodHandle freshStudentMethod() throws Exception {
+    Class<?> clazz = testObject.getClass();
+    if (Modifier.isStatic(studentTarget.getModifiers()) || ClassInfo.of(clazz).constructor() == null) {
+      return studentMethod;
+    } else {
+      try {
+        return invoker(studentTarget, Watchdog.call(() -> Tester.testObject(clazz)));
+      } catch (Exception | Error e) {
+        throw e;
+      } catch (Throwable t) {
+        throw new UndeclaredThrowableException(t);
+      }
+    }
+  }
+
+  private void runCase(
+      Results r, List<Object[]> cases, int i, MethodHandle student, Snapshot.Builder recording)
+      throws Exception {
+    var event = new Events.Case();
+    event.begin();
+    try {
+      runCase(r, cases, i, student, recording, event);
+    } finally {
+      event.finish();
+    }
+  }
+
+  private void runCase(
+      Results r,
+      List<Object[]> cases,
+      int i,
+      MethodHandle student,
+      Snapshot.Builder recording,
+      Events.Case event)
+      throws Exception {
+    Object[] args = cases.get(i);
+    String label = getLabel(name(), args);
+    event.label = label;
+    Object[] original = recording != null ? copy(args) : null;
+    Meter meter = new Meter();
+    Meter referenceMeter = new Meter(false);
+    boolean isVoid = method.getReturnType() == void.class;
+
+    Object got;
+    Object expected;
+    boolean exception = false;
+
+    if (!isVoid) {
+      // Reference goes first, on the original arguments unless we already
+      // know it changes them.
+      Copying mode = copying;
+      boolean checking = mode == Copying.UNVERIFIED || mode == Copying.VERIFIED;
+      long before = checking ? fingerprint(args) : 0;
+      Object[] gotArgs = mode == Copying.UNVERIFIED || mode == Copying.ALWAYS ? copy(args) : args;
+      // FIXME: possibly should handle expected exceptions?
+      expected = invokeReference(mode == Copying.ALWAYS ? copy(args) : args, referenceMeter);
+
+      if (checking) {
+        if (fingerprint(args) != before) {
+          if (mode == Copying.VERIFIED) {
+            // The reference changed the arguments so start over with fresh
+            // copies of the originals.
+            args = cases.get(i);
+            gotArgs = cases.get(i);
+            expected = invokeReference(cases.get(i), referenceMeter);
+          }
+          copying = Copying.ALWAYS;
+        } else if (mode == Copying.UNVERIFIED) {
+          copying = Copying.VERIFIED;
+        }
+      }
+
+      if (gotArgs == args && aliases(expected, args)) {
+        // Don't let the student method change the expected value.
+        gotArgs = copy(args);
+      }
+
+      long studentBefore = gotArgs == args ? fingerprint(args) : 0;
+      Either<Throwable, Object> eitherGot = invokeStudent(student, gotArgs, meter);
+      if (gotArgs == args && fingerprint(args) != studentBefore) {
+        // Student method changes its arguments; protect the rest of the
+        // test cases from it.
+        copying = Copying.ALWAYS;
+      }
 
-        r.add(label, limited(expected), limited(got), !exception && equivalent(got, expected));
+      if (eitherGot.isRight()) {
+        got = eitherGot.getRight();
+        specialCheck(r, label, got, gotArgs);
+      } else {
+        got = eitherGot.getLeft();
+        exception = true;
       }
     } else {
-      throw new Error("No tests for " + name());
+      // void method we assume are intended to modify their arguments in
+      // some way so we check whether the arguments we passed to each
+      // version of the method are equivalent.
+      Object[] gotArgs = copy(args);
+      Object[] expectedArgs = copy(args);
+      Either<Throwable, Object> eitherGot = invokeStudent(student, gotArgs, meter);
+      invokeReference(expectedArgs, referenceMeter);
+      if (eitherGot.isRight()) {
+        got = gotArgs;
+      } else {
+        got = eitherGot.getLeft();
+        exception = true;
+      }
+      expected = expectedArgs;
+    }
+
+    if (recording != null) {
+      recording.add(original, expected);
+    }
+    report(r, label, got, expected, exception, meter.cost(referenceMeter));
+  }
+
+  private void specialCheck(Results r, String label, Object got, Object[] gotArgs) {
+    var specialCheck = specialChecks.get(name());
+    if (specialCheck != null) {
+      r.add(
+          label + specialCheck.label(),
+          specialCheck.expected(),
+          specialCheck.got(got, gotArgs),
+          specialCheck.passed(got, gotArgs));
     }
-    return r.results();
+  }
+
+  private void report(Results r, String label, Object got, Object expected, boolean exception, Cost cost) {
+    if (got instanceof Watchdog.TimedOut timedOut) {
+      r.addUnfinished(label, limited(expected), timedOut, TestResult.Outcome.TIMED_OUT, null);
+      return;
+    } else if (got instanceof StepBudget.Exceeded exceeded) {
+      r.addUnfinished(label, limited(expected), exceeded, TestResult.Outcome.STEP_LIMIT, cost);
+      return;
+    } else if (got instanceof Governor.LimitExceeded exceeded) {
+      r.addUnfinished(label, limited(expected), exceeded, TestResult.Outcome.RESOURCE_LIMIT, null);
+      return;
+    }
+
+    final Object finalGot = got;
+    final Object finalExpected = expected;
+    final String difference = exception ? "" : equivalence.difference(got, expected);
+    r.add(
+        label,
+        () -> limited(finalExpected),
+        () -> limited(finalGot) + (difference.isEmpty() ? "" : " (differs at " + difference + ")"),
+        difference == null,
+        cost);
+  }
+
+  // Copy just the arguments that can be changed.
+  private Object[] copy(Object[] args) {
+    Object[] copy = args.clone();
+    for (int i : mutableArgs) {
+      copy[i] = deepArrayCopy(args[i]);
+    }
+    return copy;
+  }
+
+  private boolean aliases(Object value, Object[] args) {
+    for (int i : mutableArgs) {
+      if (value == args[i]) return true;
+    }
+    return false;
   }
 
   private String getLabel(String name, Object[] args) {
     if (labelers.containsKey(name)) {
       return labelers.get(name).apply(args);
     } else {
-      return name + "(" + argsToString(args) + ")";
+      return name + "(" + limitedArgsToString(args) + ")";
     }
   }
 
-  private Either<Throwable, Object> invokeMethodWithException(
-      Method m, Object obj, Object... args) {
+  private Either<Throwable, Object> invokeStudent(MethodHandle student, Object[] args, Meter meter) {
     try {
-      return Either.right(m.invoke(obj, args));
-    } catch (InvocationTargetException ite) {
-      return Either.left(ite.getCause());
-    } catch (Exception e) {
-      return Either.left(unwrap(e));
+      return Either.right(Watchdog.call(() -> meter.measure(() -> (Object) student.invokeExact(args))));
+    } catch (Throwable t) {
+      return Either.left(t);
     }
   }
 
-  private Throwable unwrap(Throwable t) {
-    if (t instanceof InvocationTargetException) {
-      return unwrap(t.getCause());
-    } else if (t instanceof UndeclaredThrowableException) {
-      return unwrap(((UndeclaredThrowableException) t).getUndeclaredThrowable());
-    } else {
-      return t;
+  private Object invokeReference(Object[] args, Meter meter) throws Exception {
+    try {
+      return meter.measure(() -> (Object) referenceMethod.invokeExact(args));
+    } catch (Exception | Error e) {
+      throw e;
+    } catch (Throwable t) {
+      throw new UndeclaredThrowableException(t);
     }
   }
-
 }
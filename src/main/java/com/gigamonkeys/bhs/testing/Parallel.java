@@ -0,0 +1,171 @@
+package com.gigamonkeys.bhs.testing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Predicate;
+
+/**
+ * Runs independent pieces of testing work on a shared ForkJoinPool while
+ * keeping the results in the same order they would be in if everything ran
+ * sequentially. The pool size comes from the bhs.parallelism property. The
+ * default of 1 means everything runs sequentially on the calling thread just
+ * like it always has. Each item gets its own random seed derived from the
+ * calling thread's (see Generator) so any test data generated while working
+ * on it is the same no matter which thread it runs on.
+ */
+public final class Parallel {
+
+  private static final int PARALLELISM = Integer.getInteger("bhs.parallelism", 1);
+
+  private static final ForkJoinPool pool = PARALLELISM > 1 ? new ForkJoinPool(PARALLELISM) : null;
+
+  /**
+   * A function that may throw.
+   */
+  @FunctionalInterface
+  public interface Fn<T, R> {
+    R apply(T t) throws Exception;
+  }
+
+  /**
+   * Something that consumes results and may throw, e.g. by writing them out.
+   */
+  @FunctionalInterface
+  public interface Sink<T, R> {
+    void accept(T t, R r) throws Exception;
+  }
+
+  private Parallel() {}
+
+  public static boolean enabled() {
+    return pool != null;
+  }
+
+  public static int parallelism() {
+    return enabled() ? PARALLELISM : 1;
+  }
+
+  /**
+   * Apply the function to each item, concurrently if enabled, returning the
+   * results in the same order as the items.
+   */
+  public static <T, R> List<R> map(List<T> items, Fn<T, R> fn) throws Exception {
+    List<R> results = new ArrayList<>(items.size());
+    forEachOrdered(items, t -> true, fn, (t, r) -> results.add(r));
+    return results;
+  }
+
+  /**
+   * Apply the function to each item and hand the results to the sink in the
+   * same order as the items, each as soon as it and everything before it are
+   * done. Items for which concurrent returns false are run on the calling
+   * thread, in order, but only once everything this call put in the pool has
+   * finished so they don't have to share the machine with it, e.g. when
+   * they're timing something.
+   */
+  public static <T, R> void forEachOrdered(
+      List<T> items, Predicate<T> concurrent, Fn<T, R> fn, Sink<T, R> sink)
+      throws Exception {
+    List<ForkJoinTask<R>> tasks = new ArrayList<>(items.size());
+    long[] seeds = new long[items.size()];
+    for (int i = 0; i < items.size(); i++) {
+      T item = items.get(i);
+      long seed = seeds[i] = Generator.seedFor(i);
+      if (enabled() && items.size() > 1 && concurrent.test(item)) {
+        // The work still belongs to the caller's submission.
+        Governor governor = Governor.current();
+        Events.Context context = Events.current();
+        tasks.add(
+            fork(
+                ForkJoinTask.adapt(
+                    () ->
+                        Events.using(
+                            context,
+                            () ->
+                                Governor.using(
+                                    governor, () -> Generator.using(seed, () -> applyWrapped(fn, item)))))));
+      } else {
+        tasks.add(null);
+      }
+    }
+    boolean drained = false;
+    for (int i = 0; i < items.size(); i++) {
+      T item = items.get(i);
+      ForkJoinTask<R> task = tasks.get(i);
+      if (task == null && !drained) {
+        drain(tasks);
+        drained = true;
+      }
+      sink.accept(item, task == null ? applySeeded(fn, item, seeds[i]) : join(task));
+    }
+  }
+
+  // Wait for all the tasks to finish without collecting their results, which
+  // we'll get, or the exceptions they threw, when we join them in order.
+  private static void drain(List<? extends ForkJoinTask<?>> tasks) {
+    for (ForkJoinTask<?> task : tasks) {
+      if (task != null) task.quietlyJoin();
+    }
+  }
+
+  // ForkJoinTask wraps checked exceptions in plain RuntimeExceptions. Wrap them
+  // ourselves so we can reliably get the original back out.
+  private static class Failure extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    Failure(Exception e) {
+      super(e);
+    }
+  }
+
+  private static <T, R> R applyWrapped(Fn<T, R> fn, T item) {
+    try {
+      return fn.apply(item);
+    } catch (RuntimeException re) {
+      throw re;
+    } catch (Exception e) {
+      throw new Failure(e);
+    }
+  }
+
+  private static <T, R> R applySeeded(Fn<T, R> fn, T item, long seed) throws Exception {
+    try {
+      return Generator.using(seed, () -> applyWrapped(fn, item));
+    } catch (Failure f) {
+      throw (Exception) f.getCause();
+    }
+  }
+
+  private static <R> ForkJoinTask<R> fork(ForkJoinTask<R> task) {
+    // Nested work (e.g. the cases of a Testable that's itself running in the
+    // pool) gets forked onto the current worker's queue.
+    if (ForkJoinTask.getPool() == pool) {
+      return task.fork();
+    } else {
+      pool.execute(task);
+      return task;
+    }
+  }
+
+  private static <R> R join(ForkJoinTask<R> task) throws Exception {
+    try {
+      return task.get();
+    } catch (ExecutionException ee) {
+      Throwable cause = ee.getCause();
+      // The pool may have wrapped the exception in a copy of itself so the
+      // stack trace shows the joining thread.
+      for (Throwable t = cause; t != null; t = t.getCause()) {
+        if (t instanceof Failure) throw (Exception) t.getCause();
+      }
+      if (cause instanceof Exception e) throw e;
+      if (cause instanceof Error e) throw e;
+      throw ee;
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw ie;
+    }
+  }
+}
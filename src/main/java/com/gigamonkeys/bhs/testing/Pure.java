@@ -0,0 +1,17 @@
+package com.gigamonkeys.bhs.testing;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method in a test interface as a pure function of its arguments: it
+ * doesn't depend on or change the state of the object it's called on and
+ * doesn't change its arguments. The test cases for pure methods can be run in
+ * parallel, each worker with its own instance of the class being tested in
+ * case the student's version isn't as pure as it should be.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Pure {}
@@ -35,13 +35,7 @@ public class Reflector<T> {
   }
 
   public Field getField(String name) {
-    try {
-      Field f = clazz.getDeclaredField(name);
-      f.setAccessible(true);
-      return f;
-    } catch (NoSuchFieldException nsfe) {
-      return null;
-    }
+    return ClassInfo.of(clazz).field(name);
   }
 
   public Optional<Object> getFieldValue(String name, Optional<T> obj) {
@@ -61,33 +55,15 @@ public class Reflector<T> {
   }
 
   public Constructor<T> getConstructor(Class<?>... classes) {
-    try {
-      Constructor<T> c = clazz.getDeclaredConstructor(classes);
-      c.setAccessible(true);
-      return c;
-    } catch (NoSuchMethodException nsfe) {
-      return null;
-    }
+    return ClassInfo.of(clazz).constructor(classes);
   }
 
   public Method getMethod(String name, Class<?>... classes) {
-    try {
-      Method m = clazz.getDeclaredMethod(name, classes);
-      m.setAccessible(true);
-      return m;
-    } catch (NoSuchMethodException nsfe) {
-      return null;
-    }
+    return ClassInfo.of(clazz).method(name, classes);
   }
 
   public Method getSuperclassMethod(String name, Class<?>... classes) {
-    try {
-      Method m = clazz.getSuperclass().getDeclaredMethod(name, classes);
-      m.setAccessible(true);
-      return m;
-    } catch (NoSuchMethodException nsfe) {
-      return null;
-    }
+    return ClassInfo.of(clazz.getSuperclass()).method(name, classes);
   }
 
   public Method[] actuallyDeclaredMethods() {
@@ -104,10 +80,34 @@ public class Reflector<T> {
     }
   }
 
+  /*
+   * The invoke methods run the method under the Watchdog so it's subject to
+   * the timeout and the Governor's limits like any other student code. If a
+   * meter is totaling for this thread the call is measured on the thread that
+   * runs it and added in.
+   */
+  private static Object invoke(Method m, Object obj, Object[] args) throws Throwable {
+    Meter total = Meter.total();
+    if (total == null) {
+      return Watchdog.call(() -> m.invoke(obj, args));
+    } else {
+      return Watchdog.call(() -> {
+        Meter meter = new Meter();
+        try {
+          return meter.measure(() -> m.invoke(obj, args));
+        } finally {
+          total.add(meter);
+        }
+      });
+    }
+  }
+
   public Optional<Object> invokeMethod(Method m, T obj, Object... args) {
     try {
-      return Optional.of(m.invoke(obj, args));
-    } catch (Exception e) {
+      return Optional.of(invoke(m, obj, args));
+    } catch (Error e) {
+      throw e;
+    } catch (Throwable t) {
       return Optional.empty();
     }
   }
@@ -138,11 +138,13 @@ public class Reflector<T> {
 
   public Either<Throwable, Object> invokeMethodWithException(Method m, T obj, Object... args) {
     try {
-      return Either.right(m.invoke(obj, args));
+      return Either.right(invoke(m, obj, args));
     } catch (InvocationTargetException ite) {
       return Either.left(ite.getCause());
-    } catch (Exception e) {
-      return Either.left(e);
+    } catch (Error e) {
+      throw e;
+    } catch (Throwable t) {
+      return Either.left(t);
     }
   }
 
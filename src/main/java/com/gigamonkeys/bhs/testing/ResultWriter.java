@@ -0,0 +1,114 @@
+package com.gigamonkeys.bhs.testing;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes test results as newline-delimited JSON, one record per Testable, as
+ * soon as each Testable is done. That way the browser can start showing
+ * results before the whole suite has run and we never have to hold all the
+ * results in memory at once. Each line looks like:
+ *
+ *   {"name":"add","results":[...]}
+ *
+ * where the results are serialized just as they are in the all-at-once JSON.
+ * The first line records the seed the test cases were generated from:
+ *
+ *   {"seed":1234}
+ *
+ * For really big test suites a record can also be written one result at a
+ * time with beginResults, writeResult, and endResults.
+ *
+ * Records are only flushed once they're complete, newline included, so
+ * anything that forwards each flush (e.g. tools.Worker) always gets whole
+ * lines.
+ */
+public class ResultWriter implements Flushable {
+
+  private static final Gson gson = new Gson();
+
+  private final Writer out;
+
+  // The record being written a result at a time, if any.
+  private JsonWriter current;
+
+  public ResultWriter(Writer out) {
+    this.out = out;
+  }
+
+  public ResultWriter(OutputStream out) {
+    this(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Write the record saying what seed the test cases were generated from.
+   */
+  public void writeSeed(long seed) throws IOException {
+    JsonWriter json = new JsonWriter(out);
+    json.beginObject();
+    json.name("seed").value(seed);
+    json.endObject();
+    out.write('\n');
+    out.flush();
+  }
+
+  /**
+   * Write one record and flush it through to the underlying stream.
+   */
+  public void write(String name, Object results) throws IOException {
+    // Not closing the JsonWriter since that would close out.
+    JsonWriter json = new JsonWriter(out);
+    json.beginObject();
+    json.name("name").value(name);
+    json.name("results");
+    var event = new Events.ToJson();
+    event.begin();
+    gson.toJson(results, results.getClass(), json);
+    event.finish();
+    json.endObject();
+    out.write('\n');
+    out.flush();
+  }
+
+  /**
+   * Start a record whose results will be written one at a time.
+   */
+  public void beginResults(String name) throws IOException {
+    current = new JsonWriter(out);
+    current.beginObject();
+    current.name("name").value(name);
+    current.name("results");
+    current.beginArray();
+  }
+
+  /**
+   * Write one result of the current record. Not flushed until endResults.
+   */
+  public void writeResult(Object result) throws IOException {
+    var event = new Events.ToJson();
+    event.begin();
+    gson.toJson(result, result.getClass(), current);
+    event.finish();
+  }
+
+  /**
+   * Finish the current record and flush it through to the underlying stream.
+   */
+  public void endResults() throws IOException {
+    current.endArray();
+    current.endObject();
+    current = null;
+    out.write('\n');
+    out.flush();
+  }
+
+  public void flush() throws IOException {
+    out.flush();
+  }
+}
@@ -7,6 +7,8 @@ import java.util.function.*;
 
 public class Results {
 
+  private static final boolean FAILURES_ONLY = Boolean.getBoolean("bhs.failuresOnly");
+
   private static class Empty {}
 
   private List<TestResult> results = new ArrayList<>();
@@ -33,6 +35,41 @@ public class Results {
     return this;
   }
 
+  /**
+   * Like add but only renders the expected and unexpected values if they're
+   * actually going to be used. When the bhs.failuresOnly property is set,
+   * passing results are recorded with just their label.
+   */
+  public Results add(
+      String label, Supplier<String> expected, Supplier<String> unexpected, boolean passed) {
+    return add(label, expected, unexpected, passed, null);
+  }
+
+  /**
+   * Like add with suppliers but also recording what it cost to run the
+   * student code.
+   */
+  public Results add(
+      String label, Supplier<String> expected, Supplier<String> unexpected, boolean passed, Cost cost) {
+    if (passed && FAILURES_ONLY) {
+      results.add(new TestResult(label, null, null, true, cost));
+    } else {
+      String e = expected.get();
+      results.add(new TestResult(label, passed ? e : unexpected.get(), e, passed, cost));
+    }
+    return this;
+  }
+
+  /**
+   * Record a test case where the student code was cut off before it finished,
+   * e.g. because it timed out.
+   */
+  public Results addUnfinished(
+      String label, String expected, Throwable reason, TestResult.Outcome outcome, Cost cost) {
+    results.add(new TestResult(label, reason.getMessage(), expected, false, outcome, cost));
+    return this;
+  }
+
   public Results expectPrivateInstanceVar(String name, Class<?> type) {
     Field f = r.getField(name);
     add(name, "Has " + name + " instance variable.", "No variable named " + name + ".", f != null);
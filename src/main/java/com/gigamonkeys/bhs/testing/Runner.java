@@ -2,20 +2,16 @@ package com.gigamonkeys.bhs.testing;
 
 import com.gigamonkeys.bhs.BespokeTestRunner;
 import com.gigamonkeys.bhs.testing.Tester;
+import com.gigamonkeys.bhs.tools.InMemoryJavaCompiler;
+import com.gigamonkeys.bhs.tools.StepCounter;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.UndeclaredThrowableException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.List;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
-import javax.tools.DiagnosticCollector;
-import javax.tools.JavaCompiler;
-import javax.tools.JavaFileObject;
-import javax.tools.StandardJavaFileManager;
-import javax.tools.ToolProvider;
 
 /**
  * A generic runner that can compile and test a bunch of source files. Probably
@@ -41,7 +37,7 @@ public class Runner {
     @Override
     public Class<?> findClass(String name) throws ClassNotFoundException {
       try {
-        byte[] bytes = Files.readAllBytes(path.resolve(name + ".class"));
+        byte[] bytes = StepCounter.maybeInstrument(Files.readAllBytes(path.resolve(name + ".class")));
         return defineClass(name, bytes, 0, bytes.length);
       } catch (IOException ioe) {
         throw new ClassNotFoundException("Can't find file", ioe);
@@ -49,28 +45,20 @@ public class Runner {
     }
   }
 
+  /**
+   * Compile the file, writing the .class files next to it like javac would.
+   * Goes through InMemoryJavaCompiler so we reuse its warm file managers.
+   */
   public static boolean compile(Path file) throws IOException {
-    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
-    DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
-
-    try (StandardJavaFileManager fileManager =
-        compiler.getStandardFileManager(diagnostics, null, null)) {
-
-      Iterable<? extends JavaFileObject> compilationUnits =
-          fileManager.getJavaFileObjectsFromPaths(List.of(file));
-      JavaCompiler.CompilationTask task =
-          compiler.getTask(null, fileManager, diagnostics, null, null, compilationUnits);
-
-      if (task.call()) {
-        return true;
-      } else {
-        return false;
-        // System.out.println("Compilation failed.");
-        // for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
-        //   System.out.format("Error on line %d in %s%n", diagnostic.getLineNumber(),
-        // diagnostic.getSource().toUri());
-        // }
+    var compiler = new InMemoryJavaCompiler();
+    if (compiler.compile(file)) {
+      for (var e : compiler.classes().entrySet()) {
+        String name = e.getKey();
+        Files.write(file.resolveSibling(name.substring(name.lastIndexOf('.') + 1) + ".class"), e.getValue());
       }
+      return true;
+    } else {
+      return false;
     }
   }
 
@@ -129,6 +117,7 @@ public class Runner {
     void maybeTest() throws IOException {
       if (needsRebuild(classFile(), resultsFile())) {
         System.out.print(resultsFile() + ": generating ...");
+        Events.startSubmission(javaFile().toString(), testerClass.getName());
         try {
           Files.writeString(resultsFile(), new BespokeTestRunner(tester()).resultsAsJson());
           System.out.println(" ok.");
@@ -165,6 +154,7 @@ public class Runner {
   }
 
   public static void main(String[] args) throws Exception {
+    Watchdog.defaultTimeoutMillis(Watchdog.SERVER_TIMEOUT_MILLIS);
 
     var testerClass = (Class<Tester>) Class.forName(args[0]);
     var tester = testerClass.getConstructor(new Class[0]).newInstance();
@@ -3,7 +3,13 @@ package com.gigamonkeys.bhs.testing;
 import java.util.Map;
 import java.util.function.Supplier;
 
-/** Implementation of Testable that pushes all the work to the tests which just supply results. */
+/**
+ * Implementation of Testable that pushes all the work to the tests which just
+ * supply results. The calls the supplier makes to student code through
+ * Reflector are metered and, since the supplier produces all the results at
+ * once, each result that doesn't have a cost of its own gets an even share of
+ * the total.
+ */
 public class SimpleTestable implements Testable {
 
   private final String name;
@@ -19,6 +25,19 @@ public class SimpleTestable implements Testable {
   }
 
   public TestResult[] results() throws Exception {
-    return tests.get(name).get();
+    Meter total = new Meter();
+    TestResult[] results = total.totaling(tests.get(name));
+
+    Cost cost = total.cost();
+    if (cost != null && total.calls() > 0 && results.length > 0) {
+      Cost share = cost.share(results.length);
+      for (int i = 0; i < results.length; i++) {
+        var r = results[i];
+        if (r.cost() == null) {
+          results[i] = new TestResult(r.label(), r.got(), r.expected(), r.passed(), r.outcome(), share);
+        }
+      }
+    }
+    return results;
   }
 }
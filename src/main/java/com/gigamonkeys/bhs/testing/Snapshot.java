@@ -0,0 +1,166 @@
+package com.gigamonkeys.bhs.testing;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Test case arguments and the reference method's results for them, saved so
+ * grading only has to run the student code. Since the expected values for a
+ * fixed set of cases never change there's no reason to compute them on every
+ * request, and it means slow reference solutions don't slow down grading.
+ *
+ * Snapshots live in the directory named by the bhs.snapshot.dir property, one
+ * gzipped serialized file per method. The file name includes a hash of the
+ * reference class's bytecodes so changing the reference solution invalidates
+ * its snapshots. Run with bhs.snapshot.record=true to (re)record them.
+ *
+ * A snapshot replays the cases it was recorded with so generated cases, which
+ * change with every seed, are keyed on the version of the tester that
+ * generates them rather than on the cases themselves.
+ *
+ * Loaded snapshots are kept in memory and shared by every submission graded
+ * against them so whoever runs code against a snapshot's arguments must copy
+ * anything the code could change.
+ *
+ * For void methods the expected value is the arguments after the reference
+ * method has run.
+ */
+public record Snapshot(Object[][] args, Object[] expected) implements Serializable {
+
+  private static final String DIR = System.getProperty("bhs.snapshot.dir");
+
+  private static final boolean RECORD = Boolean.getBoolean("bhs.snapshot.record");
+
+  private static final String EXTENSION = ".snapshot";
+
+  private static final Map<Path, Snapshot> loaded = new ConcurrentHashMap<>();
+
+  private static final ClassValue<String> versions =
+      new ClassValue<>() {
+        @Override
+        protected String computeValue(Class<?> c) {
+          byte[] digest = sha256().digest(bytecodes(c));
+          return c.getName() + "-" + HexFormat.of().formatHex(Arrays.copyOf(digest, 8));
+        }
+      };
+
+  /**
+   * Collects cases while recording a snapshot.
+   */
+  public static class Builder {
+    private final List<Object[]> args = new ArrayList<>();
+    private final List<Object> expected = new ArrayList<>();
+
+    public void add(Object[] args, Object expected) {
+      this.args.add(args);
+      this.expected.add(expected);
+    }
+
+    public Snapshot build() {
+      return new Snapshot(this.args.toArray(new Object[0][]), this.expected.toArray());
+    }
+  }
+
+  /**
+   * Whether snapshots are being used at all.
+   */
+  public static boolean enabled() {
+    return DIR != null;
+  }
+
+  /**
+   * Whether we're recording new snapshots rather than using existing ones.
+   */
+  public static boolean recording() {
+    return enabled() && RECORD;
+  }
+
+  /**
+   * The recorded snapshot for the given method of the reference class, if
+   * there is one and we're not recording. The cases string identifies the
+   * test cases, e.g. their JSON or the version of the tester that generates
+   * them, so a snapshot is only used with the cases it was recorded from.
+   */
+  public static Optional<Snapshot> load(Class<?> referenceClass, Method m, String cases) {
+    if (!enabled() || recording()) return Optional.empty();
+    // Missing and unreadable snapshots aren't cached so we notice once they
+    // have been recorded.
+    return Optional.ofNullable(loaded.computeIfAbsent(path(referenceClass, m, cases), Snapshot::read));
+  }
+
+  private static Snapshot read(Path file) {
+    if (!Files.exists(file)) return null;
+    try (var in = new ObjectInputStream(new GZIPInputStream(new BufferedInputStream(Files.newInputStream(file))))) {
+      return (Snapshot) in.readObject();
+    } catch (IOException | ClassNotFoundException | ClassCastException e) {
+      System.err.println("Ignoring unreadable snapshot " + file + ": " + e);
+      return null;
+    }
+  }
+
+  /**
+   * Save this snapshot for the given method of the reference class.
+   */
+  public void save(Class<?> referenceClass, Method m, String cases) throws IOException {
+    Path file = path(referenceClass, m, cases);
+    Files.createDirectories(file.getParent());
+    Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+    try {
+      try (var out = new ObjectOutputStream(new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp))))) {
+        out.writeObject(this);
+      }
+      Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  private static Path path(Class<?> referenceClass, Method m, String cases) {
+    MessageDigest md = sha256();
+    md.update(bytecodes(referenceClass));
+    md.update(m.toGenericString().getBytes(StandardCharsets.UTF_8));
+    md.update(cases.getBytes(StandardCharsets.UTF_8));
+    String hash = HexFormat.of().formatHex(Arrays.copyOf(md.digest(), 8));
+    return Path.of(DIR, referenceClass.getName() + "." + m.getName() + "-" + hash + EXTENSION);
+  }
+
+  /**
+   * The class's name plus a hash of its bytecodes, identifying this version
+   * of it.
+   */
+  public static String version(Class<?> clazz) {
+    return versions.get(clazz);
+  }
+
+  // The class's bytecodes if we can find them, otherwise nothing so we fall
+  // back to just the name.
+  static byte[] bytecodes(Class<?> clazz) {
+    String name = clazz.getName();
+    try (var in = clazz.getResourceAsStream(name.substring(name.lastIndexOf('.') + 1) + ".class")) {
+      return in != null ? in.readAllBytes() : new byte[0];
+    } catch (IOException ioe) {
+      return new byte[0];
+    }
+  }
+
+  static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new Error(e);
+    }
+  }
+}
@@ -0,0 +1,179 @@
+package com.gigamonkeys.bhs.testing;
+
+/**
+ * Counts the steps executed by student code so we can cut off runaway code
+ * after a fixed amount of work rather than a fixed amount of wall-clock time.
+ * Unlike timeouts, step limits don't depend on how busy the grading machine
+ * is so the same code always gets the same result.
+ *
+ * When the bhs.stepLimit property is set to a positive number, student classes
+ * are rewritten as they're loaded (see tools.StepCounter) to call tick() at the
+ * start of every method and on every backward jump, i.e. every loop iteration
+ * and every call, which is enough to catch any code that runs forever.
+ *
+ * Steps are counted per thread and only limited while a budget is armed.
+ * Watchdog arms one around every call into student code, Meter arms a fresh
+ * one around each measured call, and Tester.testObject arms one around
+ * constructors so steps never carry over from one call or submission to the
+ * next on a reused thread.
+ *
+ * The same ticks let Watchdog stop a call it has given up on (see Stop).
+ * Student code is instrumented for that whenever the Governor is enforcing
+ * limits, even without a step limit.
+ */
+public final class StepBudget {
+
+  private static final long LIMIT = Long.getLong("bhs.stepLimit", 0);
+
+  /*
+   * Steps taken and the limit for the current thread, unlimited until armed,
+   * and the Stop for the call it's running, if any.
+   */
+  private static final class Counter {
+    long steps;
+    long limit = Long.MAX_VALUE;
+    Stop stop;
+  }
+
+  private static final ThreadLocal<Counter> counter = ThreadLocal.withInitial(Counter::new);
+
+  /**
+   * What the thread was counting before a call to arm, to be handed back to
+   * disarm.
+   */
+  public record Saved(long steps, long limit) {}
+
+  /**
+   * Thrown from student code once it has used up its steps. An Error rather
+   * than an Exception so student code that catches Exception doesn't swallow
+   * it.
+   */
+  public static class Exceeded extends Error {
+    private static final long serialVersionUID = 1L;
+
+    Exceeded(long limit) {
+      super("Exceeded limit of " + limit + " steps");
+    }
+  }
+
+  /**
+   * Lets another thread stop a call. Once stopped, instrumented code running
+   * in the call throws Stopped at its next step, and keeps throwing if it
+   * catches it. Code that isn't instrumented doesn't notice.
+   */
+  public static final class Stop {
+    private volatile String reason;
+
+    public void stop(String reason) {
+      this.reason = reason;
+    }
+  }
+
+  /**
+   * Thrown from student code whose call has been stopped.
+   */
+  public static class Stopped extends Error {
+    private static final long serialVersionUID = 1L;
+
+    Stopped(String reason) {
+      super(reason);
+    }
+  }
+
+  private StepBudget() {}
+
+  /**
+   * Whether student code is being instrumented to count steps.
+   */
+  public static boolean enabled() {
+    return LIMIT > 0;
+  }
+
+  /**
+   * Whether student code is being instrumented, either to count steps or so
+   * the Governor's limits can stop it.
+   */
+  public static boolean instrumenting() {
+    return enabled() || Governor.enabled();
+  }
+
+  public static long limit() {
+    return LIMIT;
+  }
+
+  /**
+   * Called by instrumented code. Don't call directly.
+   */
+  public static void tick() {
+    Counter c = counter.get();
+    if (++c.steps > c.limit) {
+      // Keep throwing if student code catches it and keeps going.
+      throw new Exceeded(c.limit);
+    }
+    Stop stop = c.stop;
+    if (stop != null && stop.reason != null) {
+      throw new Stopped(stop.reason);
+    }
+  }
+
+  /**
+   * Start counting from zero on the current thread with the configured limit,
+   * if there is one.
+   */
+  public static Saved arm() {
+    return arm(enabled() ? LIMIT : Long.MAX_VALUE);
+  }
+
+  /**
+   * Start counting from zero on the current thread with the given limit.
+   */
+  public static Saved arm(long limit) {
+    Counter c = counter.get();
+    Saved saved = new Saved(c.steps, c.limit);
+    c.steps = 0;
+    c.limit = limit;
+    return saved;
+  }
+
+  /**
+   * Go back to counting against whatever budget was armed before, adding in
+   * the steps taken since arm, and return those steps.
+   */
+  public static long disarm(Saved saved) {
+    Counter c = counter.get();
+    long taken = c.steps;
+    c.steps = saved.steps() + taken;
+    c.limit = saved.limit();
+    return taken;
+  }
+
+  /**
+   * Make the call with a freshly armed budget.
+   */
+  public static <T> T call(Watchdog.Call<T> c) throws Throwable {
+    if (!enabled()) return c.call();
+    Saved saved = arm();
+    try {
+      return c.call();
+    } finally {
+      disarm(saved);
+    }
+  }
+
+  /**
+   * Make the call with a freshly armed budget, stopping it if the Stop is
+   * stopped.
+   */
+  public static <T> T call(Watchdog.Call<T> c, Stop stop) throws Throwable {
+    Counter counter = StepBudget.counter.get();
+    Stop previous = counter.stop;
+    counter.stop = stop;
+    Saved saved = arm();
+    try {
+      return c.call();
+    } finally {
+      disarm(saved);
+      counter.stop = previous;
+    }
+  }
+}
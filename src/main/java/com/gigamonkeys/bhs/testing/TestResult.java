@@ -1,6 +1,30 @@
 package com.gigamonkeys.bhs.testing;
 
 /**
- * A single test result.
+ * A single test result. The cost is null unless we're measuring the cost of
+ * running the student code.
  */
-public record TestResult(String label, String got, String expected, boolean passed) {}
+public record TestResult(
+    String label, String got, String expected, boolean passed, Outcome outcome, Cost cost) {
+
+  /**
+   * How the test case turned out. Timed out, over budget, and over resource
+   * limit cases are failures but are worth distinguishing since the student
+   * code never produced a value at all.
+   */
+  public enum Outcome {
+    PASSED,
+    FAILED,
+    TIMED_OUT,
+    STEP_LIMIT,
+    RESOURCE_LIMIT
+  }
+
+  public TestResult(String label, String got, String expected, boolean passed) {
+    this(label, got, expected, passed, null);
+  }
+
+  public TestResult(String label, String got, String expected, boolean passed, Cost cost) {
+    this(label, got, expected, passed, passed ? Outcome.PASSED : Outcome.FAILED, cost);
+  }
+}
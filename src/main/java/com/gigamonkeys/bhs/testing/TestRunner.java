@@ -1,5 +1,6 @@
 package com.gigamonkeys.bhs.testing;
 
+import com.gigamonkeys.bhs.tools.InMemoryJavaCompiler;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import java.io.IOException;
@@ -8,7 +9,8 @@ import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * API for running tests from either Java source code text, the name of a .java
@@ -26,11 +28,106 @@ public class TestRunner {
     ? new GsonBuilder().setPrettyPrinting().create()
     : new Gson();
 
+  private static final Pattern PACKAGE = Pattern.compile("^\\s*package\\s+([\\w.]+)\\s*;", Pattern.MULTILINE);
+
+  private static final Pattern PUBLIC_CLASS =
+    Pattern.compile("\\bpublic\\s+(?:(?:final|abstract|sealed|strictfp)\\s+)*(?:class|interface|enum|record)\\s+(\\w+)");
+
+  private static final Pattern ANY_CLASS = Pattern.compile("\\b(?:class|interface|enum|record)\\s+(\\w+)");
+
   /**
-   * Compile a string of Java source code and load as class.
+   * Compile a string of Java source code and load as class. Everything happens
+   * in memory: the bytecodes never touch the disk.
    */
   public static Class<?> classFromSource(String code) throws ClassNotFoundException {
-    throw new Error("nyi");
+    String name = className(code);
+    InMemoryJavaCompiler compiler = InMemoryJavaCompiler.forGrading();
+    compiler.addSource(name, code);
+    try {
+      if (!compiler.compileCode(name)) {
+        throw new ClassNotFoundException("Compilation failed:\n" + String.join("\n", compiler.errors()));
+      }
+    } catch (IOException ioe) {
+      throw new ClassNotFoundException("Problem compiling " + name, ioe);
+    }
+    return compiler.getClassLoader().loadClass(name);
+  }
+
+  /**
+   * Figure out the name of the top-level class defined in some source code,
+   * preferring the public class if there is one since that's the one javac
+   * requires to match the file name.
+   */
+  private static String className(String source) throws ClassNotFoundException {
+    String code = withoutCommentsOrLiterals(source);
+    String topLevel = topLevel(code);
+    Matcher m = PUBLIC_CLASS.matcher(topLevel);
+    if (!m.find()) {
+      m = ANY_CLASS.matcher(topLevel);
+      if (!m.find()) {
+        throw new ClassNotFoundException("No class found in source.");
+      }
+    }
+    Matcher p = PACKAGE.matcher(code);
+    return p.find() ? p.group(1) + "." + m.group(1) : m.group(1);
+  }
+
+  /*
+   * The code with comments and string, text block, and char literals replaced
+   * by spaces so we don't find class names in them.
+   */
+  private static String withoutCommentsOrLiterals(String code) {
+    StringBuilder sb = new StringBuilder(code.length());
+    int i = 0;
+    while (i < code.length()) {
+      int end;
+      if (code.startsWith("//", i)) {
+        end = code.indexOf('\n', i);
+      } else if (code.startsWith("/*", i)) {
+        end = code.indexOf("*/", i + 2);
+        if (end != -1) end += 2;
+      } else if (code.startsWith("\"\"\"", i)) {
+        end = endOfLiteral(code, i + 3, "\"\"\"");
+      } else if (code.charAt(i) == '"' || code.charAt(i) == '\'') {
+        end = endOfLiteral(code, i + 1, String.valueOf(code.charAt(i)));
+      } else {
+        sb.append(code.charAt(i++));
+        continue;
+      }
+      if (end == -1) end = code.length();
+      sb.append(" ".repeat(end - i));
+      i = end;
+    }
+    return sb.toString();
+  }
+
+  /*
+   * The code with everything between braces replaced by spaces so all that's
+   * left are top-level declarations, not nested or local classes. Expects
+   * comments and literals to have been blanked already.
+   */
+  private static String topLevel(String code) {
+    StringBuilder sb = new StringBuilder(code.length());
+    int depth = 0;
+    for (int i = 0; i < code.length(); i++) {
+      char c = code.charAt(i);
+      if (c == '}') depth = Math.max(0, depth - 1);
+      sb.append(depth == 0 ? c : ' ');
+      if (c == '{') depth++;
+    }
+    return sb.toString();
+  }
+
+  // Index just past the closing delimiter, skipping escaped characters.
+  private static int endOfLiteral(String code, int start, String delimiter) {
+    for (int i = start; i < code.length(); i++) {
+      if (code.charAt(i) == '\\') {
+        i++;
+      } else if (code.startsWith(delimiter, i)) {
+        return i + delimiter.length();
+      }
+    }
+    return -1;
   }
 
   /**
@@ -57,36 +154,139 @@ public class TestRunner {
 
 
 
+  // What runTests prints: the results along with the seed they were generated
+  // from, so a run can be replayed with --seed.
+  private static record SeededResults(long seed, Map<String, TestResult[]> results) {}
+
   public void runTests(Class<Tester> testerClass, Class<?> toTestClass) throws Exception {
+    Tester tester = tester(testerClass, toTestClass);
+    System.out.println(toJson(new SeededResults(Generator.seed(), results(tester))));
+  }
+
+  /**
+   * Like runTests but emits newline-delimited JSON, one line per Testable as
+   * soon as it's done.
+   */
+  public void streamTests(Class<Tester> testerClass, Class<?> toTestClass) throws Exception {
+    streamResults(tester(testerClass, toTestClass), new ResultWriter(System.out));
+  }
+
+  /**
+   * Compile the source code and make an instance of the named Tester to test
+   * it with freshly generated test cases.
+   */
+  public static Tester tester(String testerClassName, String source) throws Exception {
+    return tester(testerClassName, source, Generator.reseed());
+  }
+
+  /**
+   * Like tester(String, String) but generating the same test cases as the run
+   * that used the given seed. The seed is set before the tester class is
+   * loaded so cases generated in static initializers are reproducible too, at
+   * least the first time the class is loaded in a given JVM.
+   */
+  public static Tester tester(String testerClassName, String source, long seed) throws Exception {
+    Governor.start();
+    Events.startSubmission(submissionName(source), testerClassName);
+    Generator.seed(seed);
+    @SuppressWarnings("unchecked")
+    Class<Tester> testerClass = (Class<Tester>) classFromClassname(testerClassName);
+    Class<?> toTestClass = classFromSource(source);
+    return tester(testerClass, toTestClass);
+  }
+
+  // Name of the class in the source for labeling events, if we can find it.
+  private static String submissionName(String source) {
+    try {
+      return className(source);
+    } catch (ClassNotFoundException cnfe) {
+      return "<no class>";
+    }
+  }
+
+  private static Tester tester(Class<Tester> testerClass, Class<?> toTestClass) throws Exception {
     // This is the basic protocol. Tester classes need to have a constructor
     // that takes the class to be tested. The Tester class is responsible for
     // instantiating the class to be tested. Often that will just mean invoking
     // the no-args constructor but in some cases the tester may make multiple
     // instances with different arguments or something. (We haven't actually
     // done that yet.)
-    Tester tester = testerClass.getDeclaredConstructor(Class.class).newInstance(toTestClass);
-    System.out.println(resultsAsJson(tester));
+    var event = new Events.NewTester();
+    event.begin();
+    try {
+      return testerClass.getDeclaredConstructor(Class.class).newInstance(toTestClass);
+    } finally {
+      event.finish();
+    }
   }
 
   private Map<String, TestResult[]> results(Tester tester) throws Exception {
     var allResults = new HashMap<String, TestResult[]>();
-    for (Testable t : tester.testables()) {
-      allResults.put(
-          t.name(),
-          Arrays.stream(t.results()).collect(Collectors.toList()).toArray(new TestResult[0]));
-    }
+    Parallel.forEachOrdered(
+        Events.testables(tester),
+        Testable::concurrent,
+        Testable::results,
+        (t, results) -> allResults.put(t.name(), results));
     return allResults;
   }
 
   public String resultsAsJson(Tester tester) throws Exception {
-    return gson.toJson(results(tester));
+    return toJson(results(tester));
+  }
+
+  private String toJson(Object results) {
+    var event = new Events.ToJson();
+    event.begin();
+    String json = gson.toJson(results);
+    event.characters = json.length();
+    event.finish();
+    return json;
+  }
+
+  /**
+   * Write the results as newline-delimited JSON, starting with a record of the
+   * seed the test cases were generated from. Must be called on the thread that
+   * made the tester.
+   */
+  public void streamResults(Tester tester, ResultWriter out) throws Exception {
+    out.writeSeed(Generator.seed());
+    Parallel.forEachOrdered(
+        Events.testables(tester), Testable::concurrent, Testable::results, (t, results) -> out.write(t.name(), results));
   }
 
   public static void main(String[] args) throws Exception {
+    boolean stream = false;
+    Long seed = null;
+    int i = 0;
+    for (; args[i].startsWith("--"); i++) {
+      switch (args[i]) {
+        case "--stream" -> stream = true;
+        // Replay a previous run by generating the same test cases.
+        case "--seed" -> seed = Long.parseLong(args[++i]);
+        default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+      }
+    }
+    args = Arrays.copyOfRange(args, i, args.length);
+    Events.startSubmission(args[1], args[0]);
+
+    // Seed before loading the tester so cases generated in its static
+    // initializers come from this seed too.
+    if (seed != null) {
+      Generator.seed(seed);
+    } else {
+      Generator.reseed();
+    }
+
     Class<Tester> testerClass = (Class<Tester>)classFromClassname(args[0]);
-    Class<?> toTestClass = classFromClassname(args[1]);
-    new TestRunner().runTests(testerClass, toTestClass);
+    Class<?> toTestClass = args[1].endsWith(".java")
+      ? classFromPath(Path.of(args[1]))
+      : classFromClassname(args[1]);
 
+    if (stream) {
+      new TestRunner().streamTests(testerClass, toTestClass);
+    } else {
+      new TestRunner().runTests(testerClass, toTestClass);
+    }
   }
 
 }
@@ -1,9 +1,6 @@
 package com.gigamonkeys.bhs.testing;
 
-import com.gigamonkeys.bhs.BespokeTestRunner;
-
 import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
@@ -22,6 +19,15 @@ public interface Testable {
 
   public TestResult[] results() throws Exception;
 
+  /**
+   * Whether this testable can run at the same time as other testables, i.e.
+   * it doesn't touch any state they might. Only matters when running in
+   * parallel (see Parallel).
+   */
+  public default boolean concurrent() {
+    return false;
+  }
+
   /** With default labelers and special checks */
   public static List<Testable> methodTestables(
       Class<?> testInterface,
@@ -52,20 +58,44 @@ public interface Testable {
       Map<String, Function<Object[], String>> labelers,
       Map<String, SpecialCheck> specialChecks)
   {
-    Object proxy = BespokeTestRunner.getProxy(testInterface, testObject);
     return Arrays.stream(testInterface.getDeclaredMethods())
         .map(m -> methodToTest(m, testObject))
         .flatMap(Optional::stream)
-        .map(m -> new MethodTestable(m, proxy, referenceObject, tests, labelers, specialChecks))
+        .map(m -> new MethodTestable(m, testObject, referenceObject, tests, labelers, specialChecks))
+        .collect(Collectors.toList());
+  }
+
+  /** Cases from a case pack with default labelers and special checks */
+  public static List<Testable> methodTestables(
+      Class<?> testInterface,
+      Object testObject,
+      Object referenceObject,
+      CasePack pack)
+  {
+    return methodTestables(testInterface, testObject, referenceObject, pack, Map.of(), Map.of());
+  }
+
+  /** Cases from a case pack with specified labelers and special checks */
+  public static List<Testable> methodTestables(
+      Class<?> testInterface,
+      Object testObject,
+      Object referenceObject,
+      CasePack pack,
+      Map<String, Function<Object[], String>> labelers,
+      Map<String, SpecialCheck> specialChecks)
+  {
+    return Arrays.stream(testInterface.getDeclaredMethods())
+        .map(m -> methodToTest(m, testObject))
+        .flatMap(Optional::stream)
+        .map(m -> new MethodTestable(m, testObject, referenceObject, pack, labelers, specialChecks))
         .collect(Collectors.toList());
   }
 
   // Check that the method exists on the class we are testing.
   private static Optional<Method> methodToTest(Method m, Object testObject) {
-    try {
-      testObject.getClass().getDeclaredMethod(m.getName(), m.getParameterTypes());
+    if (ClassInfo.of(testObject.getClass()).method(m.getName(), m.getParameterTypes()) != null) {
       return Optional.of(m);
-    } catch (NoSuchMethodException | SecurityException e) {
+    } else {
       return Optional.empty();
     }
   }
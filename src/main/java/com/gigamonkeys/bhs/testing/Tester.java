@@ -10,15 +10,19 @@ public interface Tester {
   public List<Testable> testables();
 
   /**
-   * Make a instane of teh given class with a no-args constructor.
+   * Make a instane of teh given class with a no-args constructor. The
+   * constructor runs with a fresh step budget.
    */
   public static Object testObject(Class<?> clazz) {
+    StepBudget.Saved saved = StepBudget.arm();
     try {
       return clazz.getDeclaredConstructor(new Class[0]).newInstance();
     } catch (ReflectiveOperationException roe) {
       // FIXME: probably should make a custom exceeption that TestRunner catches
       // and reports the failure in some reasonable way
       throw new RuntimeException("Can't make test object", roe);
+    } finally {
+      StepBudget.disarm(saved);
     }
   }
 
@@ -1,12 +1,37 @@
 package com.gigamonkeys.bhs.testing;
 
 import java.lang.reflect.Array;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.Set;
 
 /** Static utility methods. */
 public class Utils {
 
+  private static final Set<Class<?>> IMMUTABLE =
+      Set.of(
+          String.class,
+          Integer.class,
+          Long.class,
+          Short.class,
+          Byte.class,
+          Character.class,
+          Boolean.class,
+          Double.class,
+          Float.class,
+          BigInteger.class,
+          BigDecimal.class);
+
   public static String argsToString(Object[] args) {
     var sb = new StringBuilder();
     for (int i = 0; i < args.length; i++) {
@@ -53,8 +78,131 @@ public class Utils {
     }
   }
 
+  /**
+   * Render like anyToString but limited to roughly the first LIMITED_HEAD and
+   * last LIMITED_TAIL characters with " ... " in between. Only renders as much
+   * of the value as is needed so it's cheap even for huge arrays and lists.
+   */
   public static String limited(Object o) {
-    return anyToString(o).replaceFirst("(?<=^.{70,}) .+? (?=.{10,20}$)", " ... ");
+    var event = new Events.Limited();
+    event.begin();
+    String s;
+    var head = new StringBuilder();
+    if (renderHead(o, head, LIMITED_HEAD + LIMITED_TAIL + 5)) {
+      // Short enough to show the whole thing.
+      s = head.toString();
+    } else {
+      var tail = new ArrayDeque<String>();
+      renderTail(o, tail, LIMITED_TAIL);
+      s = trimHead(head, LIMITED_HEAD) + " ... " + trimTail(String.join("", tail), LIMITED_TAIL);
+    }
+    event.length = s.length();
+    event.finish();
+    return s;
+  }
+
+  /**
+   * Like argsToString but with each argument limited.
+   */
+  public static String limitedArgsToString(Object[] args) {
+    var sb = new StringBuilder();
+    for (int i = 0; i < args.length; i++) {
+      sb.append(limited(args[i]));
+      if (i < args.length - 1) {
+        sb.append(", ");
+      }
+    }
+    return sb.toString();
+  }
+
+  private static final int LIMITED_HEAD = 70;
+  private static final int LIMITED_TAIL = 20;
+
+  // Cut the head at the first space after the limit, if there is one, so we
+  // don't split a number in half.
+  private static String trimHead(CharSequence head, int limit) {
+    for (int i = limit; i < head.length(); i++) {
+      if (head.charAt(i) == ' ') return head.subSequence(0, i).toString();
+    }
+    return head.subSequence(0, Math.min(limit, head.length())).toString();
+  }
+
+  // Likewise start the tail after the first space within the limit.
+  private static String trimTail(String tail, int limit) {
+    String t = tail.substring(Math.max(0, tail.length() - limit));
+    int space = t.indexOf(' ');
+    return space == -1 ? t : t.substring(space + 1);
+  }
+
+  /*
+   * Append the rendering of o to sb, stopping once sb is at least limit
+   * characters long. Returns true if the whole value was rendered.
+   */
+  private static boolean renderHead(Object o, StringBuilder sb, int limit) {
+    if (isSequence(o)) {
+      int length = length(o);
+      sb.append('[');
+      for (int i = 0; i < length; i++) {
+        if (i > 0) sb.append(", ");
+        if (sb.length() >= limit || !renderHead(element(o, i), sb, limit)) return false;
+      }
+      sb.append(']');
+      return sb.length() <= limit;
+    } else {
+      String s = atomToString(o);
+      int room = Math.max(0, limit - sb.length());
+      sb.append(s, 0, Math.min(s.length(), room));
+      return s.length() <= room;
+    }
+  }
+
+  /*
+   * Prepend pieces of the rendering of o to tail, working backwards from the
+   * end, until we have at least limit characters. Returns the number of
+   * characters added.
+   */
+  private static int renderTail(Object o, Deque<String> tail, int limit) {
+    if (isSequence(o)) {
+      int added = 1;
+      tail.addFirst("]");
+      for (int i = length(o) - 1; i >= 0 && added < limit; i--) {
+        added += renderTail(element(o, i), tail, limit - added);
+        tail.addFirst(i > 0 ? ", " : "[");
+        added += i > 0 ? 2 : 1;
+      }
+      return added;
+    } else {
+      String s = atomToString(o);
+      String piece = s.substring(Math.max(0, s.length() - limit));
+      tail.addFirst(piece);
+      return piece.length();
+    }
+  }
+
+  // Arrays and lists we can render a bit at a time. (Other collections we
+  // just render all at once.)
+  private static boolean isSequence(Object o) {
+    return o != null && (o.getClass().isArray() || o instanceof List<?> && o instanceof RandomAccess);
+  }
+
+  private static int length(Object o) {
+    return o.getClass().isArray() ? Array.getLength(o) : ((List<?>) o).size();
+  }
+
+  private static Object element(Object o, int i) {
+    if (o.getClass().isArray()) {
+      return Array.get(o, i);
+    } else {
+      // Lists render their elements with plain toString (so strings aren't
+      // quoted), same as anyToString.
+      return new Plain(((List<?>) o).get(i));
+    }
+  }
+
+  private static record Plain(Object value) {}
+
+  private static String atomToString(Object o) {
+    return o instanceof Plain p ? String.valueOf(p.value()) : anyToString(o);
   }
 
   public static Object deepArrayCopy(Object o) {
@@ -90,49 +238,89 @@ public class Utils {
           }
           return copy;
         }
-      } else if (o instanceof ArrayList<?>) {
-        return new ArrayList<>((ArrayList<?>) o);
+      } else if (o instanceof ArrayList<?> list) {
+        var copy = new ArrayList<Object>(list.size());
+        for (Object e : list) {
+          copy.add(deepArrayCopy(e));
+        }
+        return copy;
       } else {
         return o;
       }
     }
   }
 
-  public static boolean equivalent(Object got, Object expected) {
-    if (got == expected) {
-      return true;
-    } else if (got == null || expected == null) {
-      return false;
+  /**
+   * Whether values of the given type can't be changed by the code they're
+   * passed to, so there's never any need to copy them.
+   */
+  public static boolean isImmutable(Class<?> type) {
+    return type.isPrimitive() || type.isEnum() || IMMUTABLE.contains(type);
+  }
 
-    } else if (expected.getClass() != got.getClass()) {
+  /**
+   * Whether fingerprint will notice changes to values of the given type, i.e.
+   * it's an array or list bottoming out in immutable values. Takes the generic
+   * type since we need to know what's in a list; a raw List isn't
+   * fingerprintable.
+   */
+  public static boolean isFingerprintable(Type type) {
+    if (type instanceof Class<?> c) {
+      while (c.isArray()) {
+        c = c.getComponentType();
+      }
+      return isImmutable(c);
+    } else if (type instanceof GenericArrayType a) {
+      return isFingerprintable(a.getGenericComponentType());
+    } else if (type instanceof ParameterizedType p
+        && p.getRawType() instanceof Class<?> raw
+        && List.class.isAssignableFrom(raw)) {
+      return isFingerprintable(p.getActualTypeArguments()[0]);
+    } else {
       return false;
+    }
+  }
 
-    } else {
-      var c = expected.getClass();
-      if (c.isArray()) {
-        var comp = c.getComponentType();
-        if (comp == int.class) {
-          return Arrays.equals((int[]) got, (int[]) expected);
-        } else if (comp == long.class) {
-          return Arrays.equals((long[]) got, (long[]) expected);
-        } else if (comp == short.class) {
-          return Arrays.equals((short[]) got, (short[]) expected);
-        } else if (comp == char.class) {
-          return Arrays.equals((char[]) got, (char[]) expected);
-        } else if (comp == byte.class) {
-          return Arrays.equals((byte[]) got, (byte[]) expected);
-        } else if (comp == boolean.class) {
-          return Arrays.equals((boolean[]) got, (boolean[]) expected);
-        } else if (comp == double.class) {
-          return Arrays.equals((double[]) got, (double[]) expected);
-        } else if (comp == float.class) {
-          return Arrays.equals((float[]) got, (float[]) expected);
-        } else {
-          return Arrays.deepEquals((Object[]) got, (Object[]) expected);
-        }
-      } else {
-        return expected.equals(got);
+  /**
+   * Cheap hash of the contents of a (possibly nested) array or list. Much
+   * cheaper than copying since it doesn't allocate but if anything changes
+   * the contents it will almost certainly change the fingerprint.
+   */
+  public static long fingerprint(Object o) {
+    if (o instanceof int[] a) {
+      return a.length * 31L + Arrays.hashCode(a);
+    } else if (o instanceof long[] a) {
+      return a.length * 31L + Arrays.hashCode(a);
+    } else if (o instanceof double[] a) {
+      return a.length * 31L + Arrays.hashCode(a);
+    } else if (o instanceof char[] a) {
+      return a.length * 31L + Arrays.hashCode(a);
+    } else if (o instanceof boolean[] a) {
+      return a.length * 31L + Arrays.hashCode(a);
+    } else if (o instanceof byte[] a) {
+      return a.length * 31L + Arrays.hashCode(a);
+    } else if (o instanceof short[] a) {
+      return a.length * 31L + Arrays.hashCode(a);
+    } else if (o instanceof float[] a) {
+      return a.length * 31L + Arrays.hashCode(a);
+    } else if (o instanceof Object[] a) {
+      long h = a.length;
+      for (Object e : a) {
+        h = 31 * h + fingerprint(e);
+      }
+      return h;
+    } else if (o instanceof List<?> list) {
+      long h = list.size();
+      for (Object e : list) {
+        h = 31 * h + fingerprint(e);
       }
+      return h;
+    } else {
+      return Objects.hashCode(o);
     }
   }
+
+  public static boolean equivalent(Object got, Object expected) {
+    return Equivalence.ANY.equivalent(got, expected);
+  }
 }
@@ -0,0 +1,246 @@
+package com.gigamonkeys.bhs.testing;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs calls into student code with a deadline so one infinite loop can't
+ * hold up the results for every other test case. The call runs on a worker
+ * thread while the calling thread waits. If it doesn't finish in time we stop
+ * it, give it a moment to notice, and then abandon it and throw TimedOut.
+ * Instrumented student code (see StepBudget.Stop) stops at its next step;
+ * otherwise all we can do is interrupt the worker. (Java no longer has any way
+ * to actually kill a thread so an abandoned worker that ignores interrupts
+ * keeps running in the background, at minimum priority, until the JVM exits.
+ * See abandoned.)
+ *
+ * Workers are daemon platform threads rather than virtual threads since a
+ * virtual thread stuck in a loop that never blocks would tie up one of the
+ * carrier threads for good. The timeout comes from the bhs.timeoutMillis
+ * property. The default of zero means run everything inline with no deadline
+ * unless the Governor is enforcing limits, in which case calls still run on a
+ * worker so it can keep an eye on them. Handing each call to another thread
+ * isn't free so only the entry points that run student code (tools.Web,
+ * tools.Worker, testing.Runner, TestRunner and BespokeTestRunner) turn the
+ * timeout on, at SERVER_TIMEOUT_MILLIS unless the property says otherwise,
+ * while testing.TestRunner, which checks trusted code, doesn't pay for it.
+ */
+public final class Watchdog {
+
+  /**
+   * Timeout for servers grading untrusted code if bhs.timeoutMillis isn't set.
+   */
+  public static final long SERVER_TIMEOUT_MILLIS = 5_000;
+
+  // How long to wait after interrupting a timed out call before giving up on
+  // it.
+  private static final long GRACE_MILLIS = 100;
+
+  private static volatile long timeoutMillis = Long.getLong("bhs.timeoutMillis", 0);
+
+  private static final AtomicInteger threadCount = new AtomicInteger();
+
+  // Calls we gave up on that are still running.
+  private static final AtomicInteger abandoned = new AtomicInteger();
+
+  // States of a call on a worker.
+  private static final int RUNNING = 0;
+  private static final int FINISHED = 1;
+  private static final int ABANDONED = 2;
+
+  private static final ThreadLocal<Boolean> onWorker = ThreadLocal.withInitial(() -> false);
+
+  private static final ExecutorService workers =
+      Executors.newCachedThreadPool(
+          r -> {
+            Thread t =
+                new Thread(
+                    () -> {
+                      onWorker.set(true);
+                      r.run();
+                    },
+                    "bhs-watchdog-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          });
+
+  /**
+   * A call into student code. Like Callable but can throw anything since the
+   * student code can.
+   */
+  @FunctionalInterface
+  public interface Call<T> {
+    T call() throws Throwable;
+  }
+
+  /**
+   * Thrown when a call doesn't finish within its deadline.
+   */
+  public static class TimedOut extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    TimedOut(long millis) {
+      super("Timed out after " + millis + " ms");
+    }
+  }
+
+  // For getting throwables that are neither Exceptions nor Errors through a
+  // Callable.
+  private static class Wrapped extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    Wrapped(Throwable t) {
+      super(t);
+    }
+  }
+
+  private Watchdog() {}
+
+  /**
+   * The configured per-call timeout in milliseconds. Zero means no timeout.
+   */
+  public static long timeoutMillis() {
+    return timeoutMillis;
+  }
+
+  /**
+   * The number of abandoned calls still running in the background. Anything
+   * that cares about a clean JVM, e.g. tools.Worker, should check this after
+   * each job.
+   */
+  public static int abandoned() {
+    return abandoned.get();
+  }
+
+  /**
+   * Use the given timeout unless one was set with the bhs.timeoutMillis
+   * property.
+   */
+  public static void defaultTimeoutMillis(long millis) {
+    if (System.getProperty("bhs.timeoutMillis") == null) {
+      timeoutMillis = millis;
+    }
+  }
+
+  /**
+   * Make the call with the configured timeout, throwing whatever the call
+   * throws or TimedOut if it takes too long.
+   */
+  public static <T> T call(Call<T> c) throws Throwable {
+    return call(c, timeoutMillis);
+  }
+
+  /**
+   * Make the call with the given timeout, throwing whatever the call throws or
+   * TimedOut if it takes too long. The call gets a fresh step budget. Calls
+   * made from a call that is already running under a watchdog are run inline
+   * since the outer deadline and budget already cover them.
+   */
+  public static <T> T call(Call<T> c, long timeoutMillis) throws Throwable {
+    if (onWorker.get()) {
+      return c.call();
+    }
+    Governor.Watch watch = Governor.watch();
+    if (timeoutMillis <= 0 && watch == null) {
+      return StepBudget.call(c);
+    }
+
+    AtomicReference<Thread> worker = new AtomicReference<>();
+    StepBudget.Stop stop = new StepBudget.Stop();
+    AtomicInteger state = new AtomicInteger(RUNNING);
+    CountDownLatch done = new CountDownLatch(1);
+    Future<T> future =
+        workers.submit(
+            () -> {
+              Thread me = Thread.currentThread();
+              // May have been lowered when an earlier call was abandoned.
+              me.setPriority(Thread.NORM_PRIORITY);
+              worker.set(me);
+              if (watch != null) watch.begin();
+              try {
+                return StepBudget.call(c, stop);
+              } catch (Exception | Error e) {
+                throw e;
+              } catch (Throwable t) {
+                throw new Wrapped(t);
+              } finally {
+                if (!state.compareAndSet(RUNNING, FINISHED)) {
+                  abandoned.decrementAndGet();
+                }
+                done.countDown();
+              }
+            });
+
+    try {
+      return watch == null
+          ? future.get(timeoutMillis, TimeUnit.MILLISECONDS)
+          : governed(future, watch, timeoutMillis);
+    } catch (ExecutionException ee) {
+      Throwable cause = ee.getCause();
+      throw cause instanceof Wrapped ? cause.getCause() : cause;
+    } catch (TimeoutException te) {
+      TimedOut timedOut = new TimedOut(timeoutMillis);
+      abandon(future, worker, stop, timedOut, state, done);
+      throw timedOut;
+    } catch (Governor.LimitExceeded le) {
+      abandon(future, worker, stop, le, state, done);
+      throw le;
+    } finally {
+      if (watch != null) watch.end();
+    }
+  }
+
+  // Wait for the call, checking with the governor every so often.
+  private static <T> T governed(Future<T> future, Governor.Watch watch, long timeoutMillis)
+      throws ExecutionException, InterruptedException, TimeoutException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    while (true) {
+      long wait = Governor.intervalMillis();
+      if (timeoutMillis > 0) {
+        long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (left <= 0) throw new TimeoutException();
+        wait = Math.min(wait, left);
+      }
+      try {
+        return future.get(wait, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException te) {
+        String over = watch.over();
+        if (over != null) {
+          throw new Governor.LimitExceeded(over);
+        }
+      }
+    }
+  }
+
+  // Stop and cancel the call and, if it's still running after the grace
+  // period, count it as abandoned until it finishes. A call that never got a
+  // thread is stopped for good by the cancel.
+  private static void abandon(
+      Future<?> future,
+      AtomicReference<Thread> worker,
+      StepBudget.Stop stop,
+      RuntimeException why,
+      AtomicInteger state,
+      CountDownLatch done) {
+    stop.stop(why.getMessage());
+    future.cancel(true);
+    try {
+      if (!done.await(GRACE_MILLIS, TimeUnit.MILLISECONDS)) {
+        Thread t = worker.get();
+        if (t != null && state.compareAndSet(RUNNING, ABANDONED)) {
+          abandoned.incrementAndGet();
+          t.setPriority(Thread.MIN_PRIORITY);
+        }
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,218 @@
+package com.gigamonkeys.bhs.tools;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * On-disk cache of compiled bytecodes keyed by a hash of everything that goes
+ * into the compilation: the source text, the javac options, the JDK version,
+ * and the classes on the classpath the source is compiled against. Lots of students submit the unchanged starter code or resubmit
+ * exactly what they submitted last time so there's no reason to compile it
+ * again.
+ *
+ * Entries are written to a temp file and then atomically moved into place so
+ * multiple graders can share one directory. When the directory grows past the
+ * size limit the least recently used entries are deleted. (Reads bump the
+ * modification time of the entry, which is what we use as the LRU clock.)
+ * Checking the size means listing the whole directory so we only do it after
+ * each sixteenth of the limit we write, which means the directory can go a bit
+ * over the limit, more so if several graders share it.
+ */
+public class BytecodeCache {
+
+  private static final String EXTENSION = ".classes";
+
+  private static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+  private final Path dir;
+  private final long maxBytes;
+
+  // Bytes we've written since we last checked the size of the directory.
+  private final AtomicLong written = new AtomicLong();
+
+  public BytecodeCache(Path dir, long maxBytes) throws IOException {
+    this.dir = Files.createDirectories(dir);
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * The cache configured with the bhs.cache.dir and bhs.cache.maxBytes system
+   * properties, if any.
+   */
+  public static Optional<BytecodeCache> configured() {
+    String dir = System.getProperty("bhs.cache.dir");
+    if (dir == null) return Optional.empty();
+    try {
+      return Optional.of(new BytecodeCache(Path.of(dir), Long.getLong("bhs.cache.maxBytes", DEFAULT_MAX_BYTES)));
+    } catch (IOException ioe) {
+      System.err.println("Can't use bytecode cache in " + dir + ": " + ioe);
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Compute the cache key for compiling the given sources (name to source
+   * text) with the given options.
+   */
+  public static String key(Map<String, String> sources, List<String> options) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      update(md, Runtime.version().toString());
+      for (String option : options) {
+        update(md, option);
+      }
+      for (String entry : classpath(options)) {
+        update(md, entry);
+      }
+      for (String name : new TreeSet<>(sources.keySet())) {
+        update(md, name);
+        update(md, sources.get(name));
+      }
+      return HexFormat.of().formatHex(md.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new Error(e);
+    }
+  }
+
+  /*
+   * Identify each entry on the classpath javac will use by its path plus the
+   * size and modification time of the file or, for a directory, of the files
+   * under it, so rebuilding the testers or the library invalidates entries
+   * compiled against the old ones.
+   */
+  private static List<String> classpath(List<String> options) {
+    String classpath = System.getProperty("java.class.path", "");
+    for (int i = 0; i + 1 < options.size(); i++) {
+      switch (options.get(i)) {
+        case "-cp", "-classpath", "--class-path" -> classpath = options.get(i + 1);
+        default -> {}
+      }
+    }
+    List<String> entries = new ArrayList<>();
+    for (String entry : classpath.split(File.pathSeparator)) {
+      if (!entry.isEmpty()) {
+        entries.add(entry + ":" + stamp(Path.of(entry)));
+      }
+    }
+    return entries;
+  }
+
+  private static String stamp(Path path) {
+    try {
+      if (Files.isDirectory(path)) {
+        long files = 0;
+        long size = 0;
+        long modified = 0;
+        try (Stream<Path> paths = Files.walk(path)) {
+          for (Path p : (Iterable<Path>) paths.filter(Files::isRegularFile)::iterator) {
+            files++;
+            size += Files.size(p);
+            modified = Math.max(modified, Files.getLastModifiedTime(p).toMillis());
+          }
+        }
+        return files + ":" + size + ":" + modified;
+      } else {
+        return Files.size(path) + ":" + Files.getLastModifiedTime(path).toMillis();
+      }
+    } catch (IOException | UncheckedIOException e) {
+      // Missing or unreadable entries don't contribute any classes.
+      return "none";
+    }
+  }
+
+  private static void update(MessageDigest md, String s) {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    // Length prefix so ("ab", "c") and ("a", "bc") hash differently.
+    md.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+    md.update(bytes);
+  }
+
+  /**
+   * Get the compiled classes saved under the given key, if present.
+   */
+  public Optional<Map<String, byte[]>> get(String key) {
+    Path file = entry(key);
+    try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      int count = in.readInt();
+      Map<String, byte[]> classes = new HashMap<>();
+      for (int i = 0; i < count; i++) {
+        String name = in.readUTF();
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        classes.put(name, bytes);
+      }
+      Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+      return Optional.of(classes);
+    } catch (IOException ioe) {
+      // Not there or evicted out from under us. Either way, just a miss.
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Save the compiled classes under the given key.
+   */
+  public void put(String key, Map<String, byte[]> classes) throws IOException {
+    Path tmp = Files.createTempFile(dir, key, ".tmp");
+    try {
+      try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        out.writeInt(classes.size());
+        for (Map.Entry<String, byte[]> e : classes.entrySet()) {
+          out.writeUTF(e.getKey());
+          out.writeInt(e.getValue().length);
+          out.write(e.getValue());
+        }
+      }
+      long size = Files.size(tmp);
+      Files.move(tmp, entry(key), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      if (written.addAndGet(size) > maxBytes / 16) {
+        written.set(0);
+        evict();
+      }
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  private Path entry(String key) {
+    return dir.resolve(key + EXTENSION);
+  }
+
+  private record Entry(Path path, long size, FileTime used) {}
+
+  /**
+   * Delete least recently used entries until we're under the size limit.
+   */
+  private void evict() throws IOException {
+    List<Entry> entries = new ArrayList<>();
+    try (Stream<Path> paths = Files.list(dir)) {
+      for (Path p : (Iterable<Path>) paths::iterator) {
+        if (p.getFileName().toString().endsWith(EXTENSION)) {
+          try {
+            entries.add(new Entry(p, Files.size(p), Files.getLastModifiedTime(p)));
+          } catch (NoSuchFileException nsfe) {
+            // Someone else evicted it.
+          }
+        }
+      }
+    }
+
+    long total = entries.stream().mapToLong(Entry::size).sum();
+    if (total > maxBytes) {
+      entries.sort(Comparator.comparing(Entry::used));
+      for (Entry e : entries) {
+        if (total <= maxBytes) break;
+        Files.deleteIfExists(e.path());
+        total -= e.size();
+      }
+    }
+  }
+}
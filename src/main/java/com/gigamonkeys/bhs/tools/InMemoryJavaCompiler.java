@@ -2,18 +2,42 @@ package com.gigamonkeys.bhs.tools;
 
 import javax.tools.*;
 
-import java.io.ByteArrayOutputStream;
+import com.gigamonkeys.bhs.testing.Events;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Path;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 
 // Original code from ChatGPT 4o https://chatgpt.com/share/c4fb081d-c198-412a-9071-0e261c179e94
 
 public class InMemoryJavaCompiler {
 
+  /**
+   * Options for compiling student code when all we want to do is run it: no
+   * annotation processing and no debugging info beyond the source file and
+   * line numbers, which we keep so stack traces in the results still point at
+   * the student's code.
+   */
+  public static final List<String> FAST_GRADING = List.of("-proc:none", "-g:source,lines");
+
+  // The compiler and the standard file managers are expensive to set up (the
+  // file manager has to open ct.sym or the jrt filesystem and index the
+  // platform classes) but can be reused across compilations so we keep them
+  // around for the life of the JVM. A file manager can only be used by one
+  // compilation at a time so we keep a pool of them rather than just one. The
+  // pool holds at most one per processor; any extras made during a burst of
+  // compilations are closed when they're given back.
+  private static final JavaCompiler COMPILER = ToolProvider.getSystemJavaCompiler();
+  private static final BlockingQueue<StandardJavaFileManager> FILE_MANAGERS =
+    new ArrayBlockingQueue<>(Runtime.getRuntime().availableProcessors());
+
   private static JavaFileManager.Location LOCATION = new JavaFileManager.Location() {
       @Override public String getName() { return "IN_MEMORY"; }
 
@@ -23,8 +47,36 @@ public class InMemoryJavaCompiler {
     };
 
 
-  private Map<String, byte[]> classes = new HashMap<>();
-  private Map<String, String> sources = new HashMap<>();
+  private final Map<String, byte[]> classes = new ConcurrentHashMap<>();
+  private final Map<String, String> sources = new ConcurrentHashMap<>();
+  private final List<String> options;
+  private final BytecodeCache cache;
+  private List<String> errors = List.of();
+
+  public InMemoryJavaCompiler() {
+    this(List.of());
+  }
+
+  public InMemoryJavaCompiler(List<String> options) {
+    this(options, null);
+  }
+
+  /**
+   * Make a compiler with the given options that checks the given cache (which
+   * may be null) before actually compiling anything.
+   */
+  public InMemoryJavaCompiler(List<String> options, BytecodeCache cache) {
+    this.options = List.copyOf(options);
+    this.cache = cache;
+  }
+
+  /**
+   * Make a compiler using the FAST_GRADING options and the configured
+   * BytecodeCache, if there is one.
+   */
+  public static InMemoryJavaCompiler forGrading() {
+    return new InMemoryJavaCompiler(FAST_GRADING, BytecodeCache.configured().orElse(null));
+  }
 
   public void saveBytecodes(String classname, byte[] bytecodes) {
     classes.put(classname, bytecodes);
@@ -49,59 +101,141 @@ public class InMemoryJavaCompiler {
       public Class<?> findClass(String name) throws ClassNotFoundException {
         byte[] bytes = getBytecodes(name);
         if (bytes != null) {
-          return defineClass(name, bytes, 0, bytes.length);
+          var event = new Events.DefineClass();
+          event.begin();
+          try {
+            bytes = StepCounter.maybeInstrument(bytes);
+            event.className = name;
+            event.bytes = bytes.length;
+            return defineClass(name, bytes, 0, bytes.length);
+          } finally {
+            event.finish();
+          }
         } else {
           return super.findClass(name);
         }
       }
+
+      // So code that hashes a class's bytecodes, e.g. Snapshot, sees the
+      // classes we compiled rather than nothing.
+      @Override
+      public InputStream getResourceAsStream(String name) {
+        if (name.endsWith(".class")) {
+          byte[] bytes = getBytecodes(name.substring(0, name.length() - ".class".length()).replace('/', '.'));
+          if (bytes != null) return new ByteArrayInputStream(bytes);
+        }
+        return super.getResourceAsStream(name);
+      }
     };
   }
 
   /**
    * Compile a single .java file and save the compiled bytecodes in classes.
+   * This doesn't use the cache since javac can pull in other sources and
+   * classes from the file system and those aren't part of the key.
    */
-  public boolean compile(Path file) throws IOException {
-    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
-    DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
-
-    try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null)) {
-
-      Iterable<? extends JavaFileObject> compilationUnits = fileManager.getJavaFileObjectsFromPaths(List.of(file));
-      JavaFileManager files = new InMemoryJavaFileManager(fileManager, this);
-      JavaCompiler.CompilationTask task = compiler.getTask(null, files, diagnostics, null, null, compilationUnits);
+  public synchronized boolean compile(Path file) throws IOException {
+    var event = new Events.Compile();
+    event.begin();
+    event.className = file.getFileName().toString();
+    errors = List.of();
+    try {
+      StandardJavaFileManager fileManager = borrowFileManager();
+      try {
+        return event.succeeded = compile(fileManager, fileManager.getJavaFileObjectsFromPaths(List.of(file)));
+      } finally {
+        returnFileManager(fileManager);
+      }
+    } finally {
+      event.finish();
+    }
+  }
 
-      if (task.call()) {
-        return true;
-      } else {
-        // FIXME: should collect these some better way
-        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
-          System.out.format("Error on line %d in %s%n", diagnostic.getLineNumber(), diagnostic.getSource().toUri());
-        }
-        return false;
+  /**
+   * Compile the source previously added with addSource for the named class.
+   */
+  public synchronized boolean compileCode(String className) throws IOException {
+    var event = new Events.Compile();
+    event.begin();
+    event.className = className;
+    errors = List.of();
+    try {
+      // All the sources go into the key, not just className's, since the
+      // compiler can pull any of them in.
+      String key = cacheKey(sources);
+      if (fromCache(key)) return event.cached = event.succeeded = true;
+
+      StandardJavaFileManager fileManager = borrowFileManager();
+      try {
+        JavaFileObject source = new InMemoryJavaFileManager(fileManager, this)
+          .getJavaFileForInput(LOCATION, className, JavaFileObject.Kind.SOURCE);
+        return event.succeeded = toCache(key, compile(fileManager, List.of(source)));
+      } finally {
+        returnFileManager(fileManager);
       }
+    } finally {
+      event.finish();
     }
   }
 
+  private String cacheKey(Map<String, String> sources) {
+    return cache != null ? BytecodeCache.key(sources, options) : null;
+  }
 
-  public boolean compileCode(String className) throws IOException {
-    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
-    DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+  private boolean fromCache(String key) {
+    if (key == null) return false;
+    Optional<Map<String, byte[]>> cached = cache.get(key);
+    cached.ifPresent(classes::putAll);
+    return cached.isPresent();
+  }
 
-    try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null)) {
+  private boolean toCache(String key, boolean compiled) {
+    if (key != null && compiled) {
+      try {
+        cache.put(key, classes);
+      } catch (IOException ioe) {
+        // The compilation still worked; we just won't save any time next time.
+        System.err.println("Can't save bytecodes in cache: " + ioe);
+      }
+    }
+    return compiled;
+  }
 
-      JavaFileManager files = new InMemoryJavaFileManager(fileManager, this);
-      Iterable<? extends JavaFileObject> compilationUnits = List.of(files.getJavaFileForInput(LOCATION, className, JavaFileObject.Kind.SOURCE));
-      JavaCompiler.CompilationTask task = compiler.getTask(null, files, diagnostics, null, null, compilationUnits);
+  private boolean compile(StandardJavaFileManager fileManager, Iterable<? extends JavaFileObject> compilationUnits) {
+    DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+    JavaFileManager files = new InMemoryJavaFileManager(fileManager, this);
+    JavaCompiler.CompilationTask task = COMPILER.getTask(null, files, diagnostics, options, null, compilationUnits);
 
-      if (task.call()) {
-        return true;
-      } else {
-        // FIXME: should collect these some better way
-        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
-          System.out.format("Error on line %d in %s%n", diagnostic.getLineNumber(), diagnostic.getSource().toUri());
+    if (task.call()) {
+      return true;
+    } else {
+      List<String> found = new ArrayList<>();
+      for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+        if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+          found.add(String.format("Error on line %d: %s", diagnostic.getLineNumber(), diagnostic.getMessage(null)));
         }
-        return false;
       }
+      errors = List.copyOf(found);
+      return false;
+    }
+  }
+
+  /**
+   * Errors from the last compilation, empty if it succeeded. Compilations on
+   * the same compiler happen one at a time.
+   */
+  public synchronized List<String> errors() {
+    return errors;
+  }
+
+  private static StandardJavaFileManager borrowFileManager() {
+    StandardJavaFileManager fileManager = FILE_MANAGERS.poll();
+    return fileManager != null ? fileManager : COMPILER.getStandardFileManager(null, null, null);
+  }
+
+  private static void returnFileManager(StandardJavaFileManager fileManager) throws IOException {
+    if (!FILE_MANAGERS.offer(fileManager)) {
+      fileManager.close();
     }
   }
 
@@ -109,7 +243,7 @@ public class InMemoryJavaCompiler {
 
 
   public static void main(String[] args) throws Exception {
-    InMemoryJavaCompiler compiler = new InMemoryJavaCompiler();
+    InMemoryJavaCompiler compiler = InMemoryJavaCompiler.forGrading();
 
     compiler.addSource("Foo", "public class Foo { public void hello() { System.out.println(\"hello\"); } }");
 
@@ -130,6 +264,7 @@ public class InMemoryJavaCompiler {
 
     } else {
       System.out.println("Compilation failed.");
+      compiler.errors().forEach(System.out::println);
     }
   }
 }
@@ -0,0 +1,78 @@
+package com.gigamonkeys.bhs.tools;
+
+import com.gigamonkeys.bhs.testing.StepBudget;
+import java.util.HashSet;
+import java.util.Set;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Rewrites compiled classes to call StepBudget.tick() at the start of every
+ * method and before every backward jump. Since the call takes no arguments,
+ * returns nothing, and doesn't touch any locals, inserting it doesn't change
+ * the stack map frames or max stack so we can just copy everything else
+ * through.
+ */
+public class StepCounter {
+
+  private static final String BUDGET = StepBudget.class.getName().replace('.', '/');
+
+  /**
+   * Instrument the bytecodes if step counting is enabled or the Governor needs
+   * to be able to stop student code, otherwise return them unchanged.
+   */
+  public static byte[] maybeInstrument(byte[] bytes) {
+    return StepBudget.instrumenting() ? instrument(bytes) : bytes;
+  }
+
+  public static byte[] instrument(byte[] bytes) {
+    ClassReader reader = new ClassReader(bytes);
+    ClassWriter writer = new ClassWriter(reader, 0);
+    reader.accept(
+        new ClassVisitor(Opcodes.ASM9, writer) {
+          @Override
+          public MethodVisitor visitMethod(
+              int access, String name, String descriptor, String signature, String[] exceptions) {
+            return new Ticker(super.visitMethod(access, name, descriptor, signature, exceptions));
+          }
+        },
+        0);
+    return writer.toByteArray();
+  }
+
+  private static class Ticker extends MethodVisitor {
+
+    // Labels we've already passed. A jump to one of them is a backward jump.
+    private final Set<Label> seen = new HashSet<>();
+
+    Ticker(MethodVisitor mv) {
+      super(Opcodes.ASM9, mv);
+    }
+
+    private void tick() {
+      super.visitMethodInsn(Opcodes.INVOKESTATIC, BUDGET, "tick", "()V", false);
+    }
+
+    @Override
+    public void visitCode() {
+      super.visitCode();
+      tick();
+    }
+
+    @Override
+    public void visitLabel(Label label) {
+      seen.add(label);
+      super.visitLabel(label);
+    }
+
+    @Override
+    public void visitJumpInsn(int opcode, Label label) {
+      if (seen.contains(label)) tick();
+      super.visitJumpInsn(opcode, label);
+    }
+  }
+}
@@ -1,49 +1,198 @@
 package com.gigamonkeys.bhs.tools;
 
+import com.gigamonkeys.bhs.testing.Generator;
+import com.gigamonkeys.bhs.testing.ResultWriter;
+import com.gigamonkeys.bhs.testing.TestRunner;
+import com.gigamonkeys.bhs.testing.Tester;
+import com.gigamonkeys.bhs.testing.Watchdog;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
 import com.sun.net.httpserver.*;
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Testing trivial web server. Probably better to use Jetty.
+ * Grading server. Keeping one JVM around means we only pay for JVM startup,
+ * class loading, and JIT warm-up once rather than on every click of "Run
+ * tests" in the browser.
+ *
+ * POST a JSON object with the source code to test and the name of the Tester
+ * class to /grade and get back the same JSON that TestRunner.resultsAsJson
+ * produces. Add ?stream to the URL to get newline-delimited JSON with one
+ * line per Testable sent as soon as each finishes. Each request is handled
+ * on its own virtual thread but only bhs.web.maxConcurrent (default: number
+ * of cores) submissions are compiled and tested at once. The X-Seed response
+ * header gives the seed the test cases were generated from.
+ *
+ * With --workers N the submissions are graded in a pool of N separate worker
+ * JVMs (see WorkerPool) rather than in the server's JVM.
+ *
+ * Probably better to use Jetty eventually.
  */
 public class Web {
 
   private static final Logger log = Logger.getLogger(Web.class.getName());
 
+  private static final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+
   static {
     System.setProperty("java.util.logging.SimpleFormatter.format",
                        "%1$tF %1$tT %4$s %2$s %5$s%6$s%n");
   }
 
-  private static class MyHandler implements HttpHandler {
+  /*
+   * A submission as it comes in in the JSON.
+   */
+  static record Submission(String source, String tester) {}
+
+  private static class GradeHandler implements HttpHandler {
+
+    private final Semaphore permits;
+    private final WorkerPool workers;
+
+    GradeHandler(int maxConcurrent, WorkerPool workers) {
+      this.permits = new Semaphore(maxConcurrent);
+      this.workers = workers;
+    }
+
     public void handle(HttpExchange t) throws IOException {
-      log.info("Received request: " + t.getRequestURI());
+      long start = System.nanoTime();
+      try (t) {
+        if (!t.getRequestMethod().equals("POST")) {
+          send(t, 405, error("POST a submission."));
+          return;
+        }
 
-      InputStream is = t.getRequestBody();
-      //read(is); // .. read the request body
-      String response = "This is the response";
-      t.sendResponseHeaders(200, response.length());
-      OutputStream os = t.getResponseBody();
-      os.write(response.getBytes());
-      os.close();
+        Submission submission;
+        try (var in = new InputStreamReader(t.getRequestBody(), StandardCharsets.UTF_8)) {
+          submission = gson.fromJson(in, Submission.class);
+        } catch (JsonParseException jpe) {
+          send(t, 400, error("Bad JSON: " + jpe.getMessage()));
+          return;
+        }
 
-      log.info("Response sent: " + response);
+        if (submission == null || submission.source() == null || submission.tester() == null) {
+          send(t, 400, error("Need source and tester."));
+          return;
+        }
+
+        permits.acquireUninterruptibly();
+        try {
+          if (workers != null) {
+            grade(t, submission);
+            return;
+          }
+          Tester tester = TestRunner.tester(submission.tester(), submission.source());
+          // So a failing case can be reproduced with TestRunner --seed.
+          t.getResponseHeaders().set("X-Seed", String.valueOf(Generator.seed()));
+          if (wantsStream(t)) {
+            stream(t, tester);
+          } else {
+            send(t, 200, new TestRunner().resultsAsJson(tester));
+          }
+        } catch (ClassNotFoundException cnfe) {
+          // Either the source didn't compile or we don't know the tester.
+          send(t, 422, error(cnfe.getMessage()));
+        } catch (Exception e) {
+          log.log(Level.WARNING, "Problem grading submission.", e);
+          send(t, 500, error(String.valueOf(e)));
+        } finally {
+          permits.release();
+        }
+      } finally {
+        log.info(String.format("%s %s in %.1f ms", t.getRequestMethod(), t.getRequestURI(), (System.nanoTime() - start) / 1e6));
+      }
+    }
+
+    // Grade in a worker JVM, passing along whatever it sends back.
+    private void grade(HttpExchange t, Submission submission) throws Exception {
+      boolean stream = wantsStream(t);
+      workers.grade(
+          submission.source(),
+          submission.tester(),
+          stream,
+          new WorkerPool.Response() {
+            public void start(int status, Long seed) throws IOException {
+              if (seed != null) {
+                t.getResponseHeaders().set("X-Seed", String.valueOf(seed));
+              }
+              String type = stream && status == 200 ? "application/x-ndjson" : "application/json";
+              t.getResponseHeaders().set("Content-Type", type + "; charset=utf-8");
+              t.sendResponseHeaders(status, 0);
+            }
+
+            public void chunk(byte[] bytes) throws IOException {
+              t.getResponseBody().write(bytes);
+              t.getResponseBody().flush();
+            }
+          });
+    }
+
+    private static boolean wantsStream(HttpExchange t) {
+      String query = t.getRequestURI().getQuery();
+      return query != null && Arrays.asList(query.split("&")).contains("stream");
+    }
+
+    // Send results as newline-delimited JSON as each Testable finishes. Once
+    // we've started we can't change the status so errors go in the stream.
+    private static void stream(HttpExchange t, Tester tester) throws IOException {
+      t.getResponseHeaders().set("Content-Type", "application/x-ndjson; charset=utf-8");
+      t.sendResponseHeaders(200, 0);
+      try (var out = new OutputStreamWriter(t.getResponseBody(), StandardCharsets.UTF_8)) {
+        try {
+          new TestRunner().streamResults(tester, new ResultWriter(out));
+        } catch (Exception e) {
+          log.log(Level.WARNING, "Problem grading submission.", e);
+          out.write(error(String.valueOf(e)));
+          out.write('\n');
+        }
+      }
+    }
+
+    private static String error(String message) {
+      return gson.toJson(Map.of("error", message));
+    }
+
+    private static void send(HttpExchange t, int status, String body) throws IOException {
+      byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+      t.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+      t.sendResponseHeaders(status, bytes.length);
+      try (OutputStream os = t.getResponseBody()) {
+        os.write(bytes);
+      }
     }
   }
 
   public static void main(String[] args) throws Exception {
     log.setLevel(Level.ALL);
+    Watchdog.defaultTimeoutMillis(Watchdog.SERVER_TIMEOUT_MILLIS);
 
-    HttpServer server = HttpServer.create(new InetSocketAddress(8000), 0);
-    server.createContext("/", new MyHandler());
-    server.setExecutor(null); // creates a default executor
-    server.start();
+    int port = 8000;
+    int workerCount = 0;
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "--workers" -> workerCount = Integer.parseInt(args[++i]);
+        default -> port = Integer.parseInt(args[i]);
+      }
+    }
+    int maxConcurrent = Integer.getInteger("bhs.web.maxConcurrent", Runtime.getRuntime().availableProcessors());
+    WorkerPool workers = workerCount > 0 ? new WorkerPool(workerCount) : null;
 
-    log.info("Server started on port 8000");
+    HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+    server.createContext("/grade", new GradeHandler(maxConcurrent, workers));
+    server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+    server.start();
 
+    log.info("Server started on port " + port + " grading at most " + maxConcurrent + " submissions at once"
+             + (workers != null ? " in " + workerCount + " workers" : ""));
   }
 
 }
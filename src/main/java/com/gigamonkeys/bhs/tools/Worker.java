@@ -0,0 +1,200 @@
+package com.gigamonkeys.bhs.tools;
+
+import com.gigamonkeys.bhs.testing.Generator;
+import com.gigamonkeys.bhs.testing.ResultWriter;
+import com.gigamonkeys.bhs.testing.TestRunner;
+import com.gigamonkeys.bhs.testing.Tester;
+import com.gigamonkeys.bhs.testing.Watchdog;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Grades submissions in a JVM of its own on behalf of a WorkerPool so student
+ * code that calls System.exit, leaves static state lying around, or leaks
+ * threads can't hurt the server or anyone else's submission.
+ *
+ * Jobs come in on stdin and replies go out on stdout as frames: a four-byte
+ * big-endian length followed by that many bytes. A job is a JSON object with
+ * the source, the tester name, and whether to stream. The reply is a JSON
+ * header with the HTTP status and the seed, then any number of body frames,
+ * then an empty frame, then a JSON trailer saying how many timed out calls
+ * are still running in the background (see Watchdog.abandoned). A worker
+ * with abandoned calls shouldn't be given any more jobs. (That goes after the
+ * body since a streamed reply's header is sent before any student code
+ * runs.) Anything the student code prints goes to stderr. When stdin is
+ * closed the worker exits.
+ *
+ * On startup the worker loads the testers named in bhs.worker.preload
+ * (comma-separated) and compiles a few throwaway classes so javac is warmed
+ * up before the first real job arrives.
+ */
+public class Worker {
+
+  // Bigger than any reasonable submission or set of results.
+  private static final int MAX_FRAME = 64 * 1024 * 1024;
+
+  private static final int WARMUPS = Integer.getInteger("bhs.worker.warmups", 3);
+
+  private static final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+
+  /*
+   * A job as it comes in from the pool.
+   */
+  static record Job(String source, String tester, boolean stream) {}
+
+  /*
+   * The first frame of each reply.
+   */
+  static record Header(int status, Long seed) {}
+
+  /*
+   * The last frame of each reply.
+   */
+  static record Trailer(int abandoned) {}
+
+  static byte[] readFrame(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > MAX_FRAME) {
+      throw new IOException("Bad frame length " + length);
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  static void writeFrame(DataOutputStream out, byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+    out.flush();
+  }
+
+  static void writeFrame(DataOutputStream out, String s) throws IOException {
+    writeFrame(out, s.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /*
+   * Writer that sends whatever has been written as one frame each time it's
+   * flushed. ResultWriter flushes after every line so each line of streamed
+   * results goes back as soon as it's ready.
+   */
+  private static class FrameWriter extends Writer {
+    private final DataOutputStream out;
+    private final StringBuilder buffer = new StringBuilder();
+
+    FrameWriter(DataOutputStream out) {
+      this.out = out;
+    }
+
+    public void write(char[] cbuf, int off, int len) {
+      buffer.append(cbuf, off, len);
+    }
+
+    public void flush() throws IOException {
+      if (!buffer.isEmpty()) {
+        writeFrame(out, buffer.toString());
+        buffer.setLength(0);
+      }
+    }
+
+    public void close() throws IOException {
+      flush();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    var in = new DataInputStream(new BufferedInputStream(new FileInputStream(FileDescriptor.in)));
+    var out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+
+    // Keep the student code's output out of our replies and away from our jobs.
+    System.setOut(System.err);
+    System.setIn(InputStream.nullInputStream());
+    Watchdog.defaultTimeoutMillis(Watchdog.SERVER_TIMEOUT_MILLIS);
+
+    warmUp();
+
+    while (true) {
+      byte[] frame;
+      try {
+        frame = readFrame(in);
+      } catch (EOFException eof) {
+        return;
+      }
+      run(gson.fromJson(new String(frame, StandardCharsets.UTF_8), Job.class), out);
+    }
+  }
+
+  private static void warmUp() {
+    String preload = System.getProperty("bhs.worker.preload", "");
+    for (String name : preload.split(",")) {
+      if (name.isBlank()) continue;
+      try {
+        Class.forName(name.strip());
+      } catch (ClassNotFoundException cnfe) {
+        System.err.println("Can't preload " + name + ": " + cnfe);
+      }
+    }
+    for (int i = 0; i < WARMUPS; i++) {
+      try {
+        TestRunner.classFromSource("public class Warmup" + i + " { public int f(int x) { return x + " + i + "; } }");
+      } catch (ClassNotFoundException cnfe) {
+        System.err.println("Warm up compile failed: " + cnfe.getMessage());
+      }
+    }
+  }
+
+  private static void run(Job job, DataOutputStream out) throws IOException {
+    Tester tester;
+    try {
+      tester = TestRunner.tester(job.tester(), job.source());
+    } catch (ClassNotFoundException cnfe) {
+      // Either the source didn't compile or we don't know the tester.
+      reply(out, 422, null, error(cnfe.getMessage()));
+      return;
+    } catch (Throwable t) {
+      // Including Errors, e.g. from a tester's static initializer, so the
+      // server still gets a reply and a trailer telling it whether to retire
+      // us.
+      reply(out, 500, null, error(String.valueOf(t)));
+      return;
+    }
+
+    long seed = Generator.seed();
+    if (job.stream()) {
+      writeFrame(out, gson.toJson(new Header(200, seed)));
+      var frames = new FrameWriter(out);
+      try {
+        new TestRunner().streamResults(tester, new ResultWriter(frames));
+      } catch (Throwable t) {
+        // Too late to change the status so the error goes in the stream.
+        frames.write(error(String.valueOf(t)));
+        frames.write('\n');
+      }
+      frames.flush();
+      writeFrame(out, new byte[0]);
+      writeFrame(out, gson.toJson(new Trailer(Watchdog.abandoned())));
+    } else {
+      String body;
+      try {
+        body = new TestRunner().resultsAsJson(tester);
+      } catch (Throwable t) {
+        reply(out, 500, seed, error(String.valueOf(t)));
+        return;
+      }
+      reply(out, 200, seed, body);
+    }
+  }
+
+  private static void reply(DataOutputStream out, int status, Long seed, String body) throws IOException {
+    writeFrame(out, gson.toJson(new Header(status, seed)));
+    writeFrame(out, body);
+    writeFrame(out, new byte[0]);
+    writeFrame(out, gson.toJson(new Trailer(Watchdog.abandoned())));
+  }
+
+  static String error(String message) {
+    return gson.toJson(Map.of("error", message));
+  }
+}
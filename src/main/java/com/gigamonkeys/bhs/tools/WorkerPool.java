@@ -0,0 +1,234 @@
+package com.gigamonkeys.bhs.tools;
+
+import com.google.gson.Gson;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a fixed number of Worker JVMs running and hands submissions to them
+ * one at a time. Each worker has already loaded and warmed up everything it
+ * needs before its first job so we get process isolation for close to the
+ * cost of grading in the server's own JVM.
+ *
+ * A worker is replaced after bhs.worker.jobs (default 100) jobs, if it
+ * crashes, if a job takes longer than bhs.worker.timeoutMillis (default
+ * 60000), or if it's left with timed out student code still running. Workers
+ * run with the server's classpath and bhs.* properties plus any JVM options in
+ * bhs.worker.jvmArgs (space-separated).
+ */
+public class WorkerPool implements Closeable {
+
+  private static final Logger log = Logger.getLogger(WorkerPool.class.getName());
+
+  private static final Gson gson = new Gson();
+
+  private static final int JOBS_PER_WORKER = Integer.getInteger("bhs.worker.jobs", 100);
+
+  private static final long JOB_TIMEOUT_MILLIS = Long.getLong("bhs.worker.timeoutMillis", 60_000);
+
+  /**
+   * Where a worker's reply goes. start is called once, before any chunks.
+   */
+  public interface Response {
+    void start(int status, Long seed) throws IOException;
+
+    void chunk(byte[] bytes) throws IOException;
+  }
+
+  /*
+   * A running worker JVM and the pipes to talk to it.
+   */
+  private static class WorkerProcess {
+    private final Process process;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private int jobs;
+
+    WorkerProcess(Process process) {
+      this.process = process;
+      this.out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+      this.in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+    }
+
+    void send(byte[] bytes) throws Crashed {
+      try {
+        Worker.writeFrame(out, bytes);
+      } catch (IOException ioe) {
+        throw new Crashed(ioe);
+      }
+    }
+
+    byte[] receive() throws Crashed {
+      try {
+        return Worker.readFrame(in);
+      } catch (IOException ioe) {
+        throw new Crashed(ioe);
+      }
+    }
+
+    void retire() {
+      process.destroy();
+    }
+  }
+
+  // So we can tell the worker dying from the response going away.
+  private static class Crashed extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    Crashed(IOException cause) {
+      super(cause);
+    }
+  }
+
+  /*
+   * A place in the pool. The process is replaced when a worker is retired and
+   * is null if we couldn't start a new one; we'll try again next time the slot
+   * is used.
+   */
+  private static class Slot {
+    WorkerProcess worker;
+  }
+
+  private final List<String> command;
+  private final BlockingQueue<Slot> slots;
+  private final ScheduledExecutorService timer =
+      Executors.newSingleThreadScheduledExecutor(
+          r -> {
+            Thread t = new Thread(r, "bhs-worker-timer");
+            t.setDaemon(true);
+            return t;
+          });
+
+  public WorkerPool(int size) throws IOException {
+    this.command = command();
+    this.slots = new ArrayBlockingQueue<>(size);
+    for (int i = 0; i < size; i++) {
+      Slot slot = new Slot();
+      slot.worker = start();
+      slots.add(slot);
+    }
+  }
+
+  private static List<String> command() {
+    List<String> command = new ArrayList<>();
+    command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+    for (String arg : System.getProperty("bhs.worker.jvmArgs", "").split("\\s+")) {
+      if (!arg.isEmpty()) command.add(arg);
+    }
+    for (String name : System.getProperties().stringPropertyNames()) {
+      if (name.startsWith("bhs.")) {
+        command.add("-D" + name + "=" + System.getProperty(name));
+      }
+    }
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(Worker.class.getName());
+    return command;
+  }
+
+  private WorkerProcess start() throws IOException {
+    return new WorkerProcess(
+        new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start());
+  }
+
+  /**
+   * Grade a submission on the next free worker, waiting for one if they're all
+   * busy, and send the reply to the response. If the worker dies part way
+   * through, the response gets a 500 or, if a stream has already started, an
+   * error line. Non-streamed replies are held until they're complete so they
+   * can always still become a 500.
+   */
+  public void grade(String source, String tester, boolean stream, Response response)
+      throws IOException, InterruptedException {
+    Slot slot = slots.take();
+    boolean reusable = false;
+    boolean started = false;
+    ScheduledFuture<?> deadline = null;
+    try {
+      if (slot.worker == null || !slot.worker.process.isAlive()) {
+        slot.worker = start();
+      }
+      WorkerProcess worker = slot.worker;
+      deadline = timer.schedule(worker.process::destroyForcibly, JOB_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+      worker.send(gson.toJson(new Worker.Job(source, tester, stream)).getBytes(StandardCharsets.UTF_8));
+      var header = gson.fromJson(new String(worker.receive(), StandardCharsets.UTF_8), Worker.Header.class);
+      List<byte[]> body = new ArrayList<>();
+      if (stream) {
+        response.start(header.status(), header.seed());
+        started = true;
+      }
+      for (byte[] chunk = worker.receive(); chunk.length > 0; chunk = worker.receive()) {
+        if (started) {
+          response.chunk(chunk);
+        } else {
+          body.add(chunk);
+        }
+      }
+      var trailer = gson.fromJson(new String(worker.receive(), StandardCharsets.UTF_8), Worker.Trailer.class);
+      if (!started) {
+        response.start(header.status(), header.seed());
+        started = true;
+        for (byte[] chunk : body) {
+          response.chunk(chunk);
+        }
+      }
+      if (trailer.abandoned() > 0) {
+        log.warning("Retiring worker with " + trailer.abandoned() + " abandoned calls");
+      }
+      reusable = trailer.abandoned() == 0 && ++worker.jobs < JOBS_PER_WORKER;
+    } catch (Crashed crashed) {
+      boolean timedOut = deadline != null && deadline.isDone();
+      String message = timedOut ? "Timed out after " + JOB_TIMEOUT_MILLIS + " ms" : "Worker crashed";
+      log.log(Level.WARNING, message, crashed);
+      if (!started) {
+        response.start(500, null);
+      }
+      // Only streams get this far after starting and workers send whole lines
+      // so there's never a partial line to finish.
+      response.chunk((Worker.error(message) + (stream ? "\n" : "")).getBytes(StandardCharsets.UTF_8));
+    } finally {
+      if (deadline != null) {
+        deadline.cancel(false);
+      }
+      if (!reusable) {
+        replace(slot);
+      }
+      slots.put(slot);
+    }
+  }
+
+  // Get rid of the slot's worker, if any, and start a new one now so it can
+  // warm up before it's needed.
+  private void replace(Slot slot) {
+    if (slot.worker != null) {
+      slot.worker.retire();
+    }
+    try {
+      slot.worker = start();
+    } catch (IOException ioe) {
+      log.log(Level.WARNING, "Couldn't start worker", ioe);
+      slot.worker = null;
+    }
+  }
+
+  public void close() {
+    for (Slot slot : slots) {
+      if (slot.worker != null) {
+        slot.worker.retire();
+      }
+    }
+    timer.shutdownNow();
+  }
+}
@@ -0,0 +1,130 @@
+package com.gigamonkeys.bhs.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CasePackTest {
+
+  private Path dir;
+
+  @Before
+  public void makeDir() throws IOException {
+    dir = Files.createTempDirectory("case-pack-test");
+  }
+
+  @After
+  public void deleteDir() throws IOException {
+    try (Stream<Path> paths = Files.walk(dir)) {
+      for (Path p : paths.sorted(Comparator.reverseOrder()).toList()) {
+        Files.delete(p);
+      }
+    }
+  }
+
+  private CasePack roundTrip(String name, Map<String, Object[][]> tests) throws IOException {
+    Path file = dir.resolve(name + ".cases");
+    CasePack.write(file, tests);
+    return CasePack.open(file);
+  }
+
+  @Test
+  public void scalars() throws IOException {
+    Object[][] cases = {
+      { 1, 2L, 3.5, 4.5f, (short) 5, (byte) 6, 'x', true, "héllo", null },
+      { Integer.MIN_VALUE, Long.MAX_VALUE, Double.NaN, Float.NEGATIVE_INFINITY, (short) -1, (byte) -1, '☃', false, "", null },
+    };
+    CasePack pack = roundTrip("scalars", Map.of("f", cases));
+    List<Object[]> got = pack.cases("f");
+    assertEquals(2, got.size());
+    for (int i = 0; i < cases.length; i++) {
+      assertArrayEquals(cases[i], got.get(i));
+    }
+  }
+
+  @Test
+  public void nestedArrays() throws IOException {
+    Object[][] cases = {
+      { new int[][] { { 1, 2 }, {}, { 3 } }, new double[] { 0.5, -0.0 }, new char[][][] { { { 'a' } } } },
+      { new String[][] { { "a", null }, null }, new boolean[0], new Integer[] { 1, null } },
+    };
+    CasePack pack = roundTrip("arrays", Map.of("f", cases));
+    for (int i = 0; i < cases.length; i++) {
+      Object[] got = pack.cases("f").get(i);
+      assertTrue(Arrays.deepEquals(cases[i], got));
+      for (int j = 0; j < got.length; j++) {
+        assertSame(cases[i][j].getClass(), got[j].getClass());
+      }
+    }
+  }
+
+  @Test
+  public void nestedLists() throws IOException {
+    List<List<Integer>> lists = new ArrayList<>();
+    lists.add(List.of(1, 2));
+    lists.add(List.of());
+    lists.add(Arrays.asList(3, null));
+    Object[][] cases = { { lists, List.of(new int[] { 4, 5 }, "six") } };
+
+    Object[] got = roundTrip("lists", Map.of("f", cases)).cases("f").get(0);
+    assertEquals(lists, got[0]);
+    List<?> mixed = (List<?>) got[1];
+    assertEquals(2, mixed.size());
+    assertArrayEquals(new int[] { 4, 5 }, (int[]) mixed.get(0));
+    assertEquals("six", mixed.get(1));
+  }
+
+  @Test
+  public void methodsInOrder() throws IOException {
+    var tests = new LinkedHashMap<String, Object[][]>();
+    tests.put("zed", new Object[][] { { 1 } });
+    tests.put("alpha", new Object[][] { { 2 }, { 3 } });
+    tests.put("none", new Object[0][]);
+    CasePack pack = roundTrip("order", tests);
+    assertEquals(List.of("zed", "alpha", "none"), List.copyOf(pack.names()));
+    assertEquals(2, pack.cases("alpha").size());
+    assertEquals(0, pack.cases("none").size());
+    assertNull(pack.cases("missing"));
+  }
+
+  @Test
+  public void freshArraysOnEveryGet() throws IOException {
+    CasePack pack = roundTrip("fresh", Map.of("f", new Object[][] { { new int[] { 1, 2, 3 } } }));
+    int[] first = (int[]) pack.cases("f").get(0)[0];
+    first[0] = 99;
+    assertArrayEquals(new int[] { 1, 2, 3 }, (int[]) pack.cases("f").get(0)[0]);
+  }
+
+  @Test
+  public void hashFollowsContents() throws IOException {
+    CasePack a = roundTrip("a", Map.of("f", new Object[][] { { 1 } }));
+    CasePack b = roundTrip("b", Map.of("f", new Object[][] { { 1 } }));
+    CasePack c = roundTrip("c", Map.of("f", new Object[][] { { 2 } }));
+    assertEquals(a.hash(), b.hash());
+    assertNotEquals(a.hash(), c.hash());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void unpackable() throws IOException {
+    roundTrip("bad", Map.of("f", new Object[][] { { new Object() } }));
+  }
+
+  @Test(expected = IOException.class)
+  public void notAPack() throws IOException {
+    Path file = dir.resolve("junk.cases");
+    Files.write(file, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 0, 0, 0, 0 });
+    CasePack.open(file);
+  }
+}
@@ -0,0 +1,94 @@
+package com.gigamonkeys.bhs.testing;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.junit.Test;
+
+public class EquivalenceTest {
+
+  record Point(int x, int y) {}
+
+  private static final Equivalence ANY = Equivalence.ANY;
+
+  @Test
+  public void primitiveArrays() {
+    Equivalence ints = Equivalence.forType(int[].class);
+    assertTrue(ints.equivalent(new int[] { 1, 2, 3 }, new int[] { 1, 2, 3 }));
+    assertEquals("[1]", ints.difference(new int[] { 1, 5, 3 }, new int[] { 1, 2, 3 }));
+    assertEquals(".length", ints.difference(new int[] { 1, 2 }, new int[] { 1, 2, 3 }));
+  }
+
+  @Test
+  public void floatingPointTolerance() {
+    assertTrue(Equivalence.forType(double.class).equivalent(0.1 + 0.2, 0.3));
+    assertFalse(Equivalence.forType(double.class).equivalent(0.31, 0.3));
+    assertTrue(Equivalence.forType(double[].class).equivalent(new double[] { 0.1 + 0.2 }, new double[] { 0.3 }));
+    assertFalse(Equivalence.forType(double.class).equivalent(0.0, 1e-20));
+  }
+
+  @Test
+  public void exactTypesNeedSameClass() {
+    // Arrays and final classes pin down the class.
+    assertFalse(ANY.equivalent(new Integer[] { 1 }, new Number[] { 1 }));
+    assertFalse(ANY.equivalent("1", new StringBuilder("1")));
+    assertFalse(ANY.equivalent(new int[] { 1 }, List.of(1)));
+  }
+
+  @Test
+  public void nestedListsCompareByContents() {
+    List<List<Integer>> expected = new ArrayList<>();
+    expected.add(new ArrayList<>(List.of(1, 2)));
+    expected.add(new ArrayList<>(List.of(3)));
+
+    assertTrue(ANY.equivalent(List.of(List.of(1, 2), List.of(3)), expected));
+    assertTrue(ANY.equivalent(new LinkedList<>(List.of(new LinkedList<>(List.of(1, 2)), List.of(3))), expected));
+    assertEquals("[1][0]", ANY.difference(List.of(List.of(1, 2), List.of(4)), expected));
+    assertEquals("[0].size()", ANY.difference(List.of(List.of(1), List.of(3)), expected));
+  }
+
+  @Test
+  public void listsInsideArrays() {
+    Object[] expected = { new ArrayList<>(List.of(1, 2)) };
+    assertTrue(ANY.equivalent(new Object[] { List.of(1, 2) }, expected));
+    assertEquals("[0][1]", ANY.difference(new Object[] { List.of(1, 3) }, expected));
+  }
+
+  @Test
+  public void mapsCompareByContents() {
+    Map<String, List<Integer>> expected = new HashMap<>();
+    expected.put("a", new ArrayList<>(List.of(1)));
+    assertTrue(ANY.equivalent(new TreeMap<>(Map.of("a", List.of(1))), expected));
+    assertEquals(".get(a)[0]", ANY.difference(Map.of("a", List.of(2)), expected));
+    assertEquals(".get(a)", ANY.difference(Map.of("b", List.of(1)), expected));
+  }
+
+  @Test
+  public void numbersCompareByValue() {
+    assertTrue(ANY.equivalent(0.5f, 0.5));
+    assertTrue(ANY.equivalent(List.of(0.1f), List.of(0.1)));
+    assertFalse(ANY.equivalent(0.25f, 0.5));
+    assertTrue(ANY.equivalent(3L, 3));
+    assertFalse(ANY.equivalent(3L, 4));
+    assertFalse(ANY.equivalent("3", 3));
+  }
+
+  @Test
+  public void records() {
+    assertTrue(ANY.equivalent(new Point(1, 2), new Point(1, 2)));
+    assertEquals(".y()", ANY.difference(new Point(1, 3), new Point(1, 2)));
+  }
+
+  @Test
+  public void nulls() {
+    assertTrue(ANY.equivalent(null, null));
+    assertEquals("", ANY.difference(null, List.of()));
+    assertEquals("[1]", ANY.difference(Arrays.asList(1, null), List.of(1, 2)));
+  }
+}
@@ -0,0 +1,53 @@
+package com.gigamonkeys.bhs.testing;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+import org.junit.Test;
+
+public class MethodTestableTest {
+
+  public interface Summer {
+    int sum(int[] a);
+  }
+
+  // Reference that scribbles on its argument after computing the answer.
+  public static class Reference implements Summer {
+    public int sum(int[] a) {
+      int total = 0;
+      for (int x : a) total += x;
+      a[0] = 99;
+      return total;
+    }
+  }
+
+  public static class Student {
+    public int sum(int[] a) {
+      int total = 0;
+      for (int x : a) total += x;
+      return total;
+    }
+  }
+
+  private static TestResult[] run(Map<String, Object[][]> tests) throws Exception {
+    var testable =
+        new MethodTestable(
+            Summer.class.getMethod("sum", int[].class), new Student(), new Reference(), tests, Map.of(), Map.of());
+    return testable.results();
+  }
+
+  @Test
+  public void mutatingReferenceLeavesSharedCasesAlone() throws Exception {
+    Object[][] cases = { { new int[] { 1, 2, 3 } }, { new int[] { 4, 5 } } };
+    Map<String, Object[][]> tests = Map.of("sum", cases);
+
+    // Twice since the cases live as long as the tester and get reused.
+    for (int run = 0; run < 2; run++) {
+      for (TestResult r : run(tests)) {
+        assertTrue(r.label(), r.passed());
+      }
+      assertArrayEquals(new int[] { 1, 2, 3 }, (int[]) cases[0][0]);
+      assertArrayEquals(new int[] { 4, 5 }, (int[]) cases[1][0]);
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package com.gigamonkeys.bhs.testing;
+
+import static org.junit.Assert.*;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class ResultWriterTest {
+
+  // Remembers what had been written each time it was flushed.
+  private static class FlushRecorder extends StringWriter {
+    final List<String> flushed = new ArrayList<>();
+
+    @Override
+    public void flush() {
+      flushed.add(toString());
+    }
+  }
+
+  private static List<JsonObject> lines(String ndjson) {
+    assertTrue("ends with newline", ndjson.endsWith("\n"));
+    List<JsonObject> records = new ArrayList<>();
+    for (String line : ndjson.split("\n")) {
+      records.add(JsonParser.parseString(line).getAsJsonObject());
+    }
+    return records;
+  }
+
+  @Test
+  public void oneRecordPerLine() throws IOException {
+    var out = new StringWriter();
+    var writer = new ResultWriter(out);
+    writer.writeSeed(1234);
+    writer.write("add", new String[] { "multi\nline", "plain" });
+    writer.write("sub", List.of(Map.of("passed", true)));
+
+    List<JsonObject> records = lines(out.toString());
+    assertEquals(3, records.size());
+    assertEquals(1234, records.get(0).get("seed").getAsLong());
+    assertEquals("add", records.get(1).get("name").getAsString());
+    assertEquals("multi\nline", records.get(1).getAsJsonArray("results").get(0).getAsString());
+    assertEquals("sub", records.get(2).get("name").getAsString());
+    assertTrue(records.get(2).getAsJsonArray("results").get(0).getAsJsonObject().get("passed").getAsBoolean());
+  }
+
+  @Test
+  public void resultsOneAtATime() throws IOException {
+    var out = new StringWriter();
+    var writer = new ResultWriter(out);
+    writer.beginResults("big");
+    for (int i = 0; i < 3; i++) {
+      writer.writeResult(Map.of("i", i));
+    }
+    writer.endResults();
+    writer.write("next", new int[] { 1 });
+
+    List<JsonObject> records = lines(out.toString());
+    assertEquals(2, records.size());
+    var results = records.get(0).getAsJsonArray("results");
+    assertEquals(3, results.size());
+    assertEquals(2, results.get(2).getAsJsonObject().get("i").getAsInt());
+    assertEquals("next", records.get(1).get("name").getAsString());
+  }
+
+  @Test
+  public void flushesWholeLines() throws IOException {
+    var out = new FlushRecorder();
+    var writer = new ResultWriter(out);
+    writer.writeSeed(1);
+    writer.write("a", new int[] { 1 });
+    writer.beginResults("b");
+    writer.writeResult(2);
+    writer.endResults();
+
+    assertFalse(out.flushed.isEmpty());
+    for (String s : out.flushed) {
+      assertTrue("flushed a partial line: " + s, s.isEmpty() || s.endsWith("\n"));
+    }
+    assertEquals(out.toString(), out.flushed.get(out.flushed.size() - 1));
+  }
+}
@@ -0,0 +1,114 @@
+package com.gigamonkeys.bhs.testing;
+
+import static org.junit.Assert.*;
+
+import com.gigamonkeys.bhs.tools.InMemoryJavaCompiler;
+import com.gigamonkeys.bhs.tools.StepCounter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import org.junit.Test;
+
+public class StepBudgetTest {
+
+  private static final String SOURCE =
+      "public class Loop { public static int loop(int n) { int t = 0; for (int i = 0; i < n; i++) t += i; return t; } }";
+
+  // A freshly compiled and instrumented copy of the Loop class, as if from a
+  // new submission.
+  private static Method loop() throws Exception {
+    var compiler = new InMemoryJavaCompiler();
+    compiler.addSource("Loop", SOURCE);
+    assertTrue(compiler.compileCode("Loop"));
+    compiler.saveBytecodes("Loop", StepCounter.instrument(compiler.getBytecodes("Loop")));
+    return compiler.getClassLoader().loadClass("Loop").getMethod("loop", int.class);
+  }
+
+  private static long stepsFor(Method loop, int n, long limit) throws Exception {
+    long steps;
+    StepBudget.Saved saved = StepBudget.arm(limit);
+    try {
+      loop.invoke(null, n);
+    } finally {
+      steps = StepBudget.disarm(saved);
+    }
+    return steps;
+  }
+
+  @Test
+  public void countsSteps() throws Exception {
+    long steps = stepsFor(loop(), 1000, Long.MAX_VALUE);
+    assertTrue("steps: " + steps, steps >= 1000 && steps < 1100);
+  }
+
+  @Test
+  public void throwsWhenExceeded() throws Exception {
+    Method loop = loop();
+    StepBudget.Saved saved = StepBudget.arm(100);
+    try {
+      loop.invoke(null, 1000);
+      fail("Should have run out of steps");
+    } catch (InvocationTargetException ite) {
+      assertTrue(ite.getCause() instanceof StepBudget.Exceeded);
+    } finally {
+      StepBudget.disarm(saved);
+    }
+  }
+
+  @Test
+  public void twoSubmissionsOnOneThread() throws Exception {
+    // Each run uses most of the budget so if steps carried over from the
+    // first submission the second would run out.
+    for (int i = 0; i < 2; i++) {
+      long steps = stepsFor(loop(), 1000, 1500);
+      assertTrue("steps: " + steps, steps >= 1000 && steps < 1100);
+    }
+  }
+
+  @Test
+  public void unarmedIsUnlimited() throws Exception {
+    Method loop = loop();
+    stepsFor(loop, 1000, 1500);
+    loop.invoke(null, 1_000_000);
+  }
+
+  @Test
+  public void nestedStepsCountAgainstOuterBudget() throws Exception {
+    Method loop = loop();
+    StepBudget.Saved outer = StepBudget.arm(1500);
+    try {
+      long inner = stepsFor(loop, 1000, Long.MAX_VALUE);
+      assertTrue(inner >= 1000);
+      loop.invoke(null, 1000);
+      fail("Should have run out of steps");
+    } catch (InvocationTargetException ite) {
+      assertTrue(ite.getCause() instanceof StepBudget.Exceeded);
+    } finally {
+      StepBudget.disarm(outer);
+    }
+  }
+
+  @Test
+  public void stoppedCallThrows() throws Throwable {
+    Method loop = loop();
+    var stop = new StepBudget.Stop();
+    stop.stop("Enough");
+    try {
+      StepBudget.call(() -> loop.invoke(null, 1000), stop);
+      fail("Should have been stopped");
+    } catch (InvocationTargetException ite) {
+      assertTrue(ite.getCause() instanceof StepBudget.Stopped);
+      assertEquals("Enough", ite.getCause().getMessage());
+    }
+    // Only that call was stopped.
+    loop.invoke(null, 1000);
+  }
+
+  @Test
+  public void watchdogCallsStartFresh() throws Throwable {
+    Method loop = loop();
+    for (int i = 0; i < 2; i++) {
+      long steps = Watchdog.call(() -> stepsFor(loop, 1000, 1500), 1000);
+      assertTrue("steps: " + steps, steps >= 1000 && steps < 1100);
+    }
+  }
+}
@@ -0,0 +1,29 @@
+package com.gigamonkeys.bhs.testing;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestRunnerTest {
+
+  @Test
+  public void nestedPublicClassIsNotTheClass() throws Exception {
+    String source = "class Outer {\n  public class Inner {}\n  public int f() { return 1; }\n}\n";
+    assertEquals("Outer", TestRunner.classFromSource(source).getName());
+  }
+
+  @Test
+  public void publicClassPreferred() throws Exception {
+    String source =
+        "package p;\n"
+            + "class Helper { public class Nested {} }\n"
+            + "public class Main { record Local(int x) {} }\n";
+    assertEquals("p.Main", TestRunner.classFromSource(source).getName());
+  }
+
+  @Test
+  public void namesInCommentsAndStringsIgnored() throws Exception {
+    String source = "// public class Comment {}\nclass Real { String s = \"public class Str {\"; }\n";
+    assertEquals("Real", TestRunner.classFromSource(source).getName());
+  }
+}
@@ -0,0 +1,117 @@
+package com.gigamonkeys.bhs.testing;
+
+import static org.junit.Assert.*;
+
+import com.gigamonkeys.bhs.tools.InMemoryJavaCompiler;
+import com.gigamonkeys.bhs.tools.StepCounter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import org.junit.Test;
+
+public class WatchdogTest {
+
+  private static volatile boolean stop;
+
+  @Test
+  public void returnsValue() throws Throwable {
+    assertEquals(42, (int) Watchdog.call(() -> 42, 1000));
+    assertEquals(42, (int) Watchdog.call(() -> 42, 0));
+  }
+
+  @Test
+  public void rethrowsWhatTheCallThrows() throws Throwable {
+    try {
+      Watchdog.call(
+          () -> {
+            throw new IllegalStateException("boom");
+          },
+          1000);
+      fail("Should have thrown");
+    } catch (IllegalStateException ise) {
+      assertEquals("boom", ise.getMessage());
+    }
+  }
+
+  @Test
+  public void zeroTimeoutRunsInline() throws Throwable {
+    Thread me = Thread.currentThread();
+    assertSame(me, Watchdog.call(Thread::currentThread, 0));
+    assertNotSame(me, Watchdog.call(Thread::currentThread, 1000));
+  }
+
+  @Test
+  public void nestedCallsRunInline() throws Throwable {
+    Thread[] threads = Watchdog.call(
+        () -> new Thread[] { Thread.currentThread(), Watchdog.call(Thread::currentThread, 1000) },
+        1000);
+    assertSame(threads[0], threads[1]);
+  }
+
+  @Test
+  public void interruptibleCallTimesOut() throws Throwable {
+    long start = System.nanoTime();
+    try {
+      Watchdog.call(
+          () -> {
+            Thread.sleep(60_000);
+            return null;
+          },
+          100);
+      fail("Should have timed out");
+    } catch (Watchdog.TimedOut timedOut) {
+      assertTrue((System.nanoTime() - start) / 1_000_000 < 5_000);
+    }
+  }
+
+  @Test
+  public void instrumentedCallIsStopped() throws Throwable {
+    var compiler = new InMemoryJavaCompiler();
+    compiler.addSource("Spin", "public class Spin { public static void spin() { while (true) {} } }");
+    assertTrue(compiler.compileCode("Spin"));
+    compiler.saveBytecodes("Spin", StepCounter.instrument(compiler.getBytecodes("Spin")));
+    Method spin = compiler.getClassLoader().loadClass("Spin").getMethod("spin");
+
+    Thread[] worker = new Thread[1];
+    int before = Watchdog.abandoned();
+    try {
+      Watchdog.call(
+          () -> {
+            worker[0] = Thread.currentThread();
+            return spin.invoke(null);
+          },
+          100);
+      fail("Should have timed out");
+    } catch (Watchdog.TimedOut timedOut) {
+      // Stopped within the grace period so not abandoned.
+      assertEquals(before, Watchdog.abandoned());
+      assertEquals(Thread.NORM_PRIORITY, worker[0].getPriority());
+    }
+  }
+
+  @Test
+  public void callIgnoringInterruptsIsAbandoned() throws Throwable {
+    stop = false;
+    Thread[] worker = new Thread[1];
+    int before = Watchdog.abandoned();
+    try {
+      Watchdog.call(
+          () -> {
+            worker[0] = Thread.currentThread();
+            while (!stop) {
+              Thread.onSpinWait();
+            }
+            return null;
+          },
+          100);
+      fail("Should have timed out");
+    } catch (Watchdog.TimedOut timedOut) {
+      assertTrue(worker[0].isAlive());
+      assertEquals(Thread.MIN_PRIORITY, worker[0].getPriority());
+      assertEquals(before + 1, Watchdog.abandoned());
+    } finally {
+      stop = true;
+    }
+    worker[0].join(5_000);
+    assertEquals(before, Watchdog.abandoned());
+  }
+}
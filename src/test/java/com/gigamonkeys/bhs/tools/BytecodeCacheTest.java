@@ -0,0 +1,85 @@
+package com.gigamonkeys.bhs.tools;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BytecodeCacheTest {
+
+  private Path dir;
+
+  @Before
+  public void makeDir() throws IOException {
+    dir = Files.createTempDirectory("bytecode-cache-test");
+  }
+
+  @After
+  public void deleteDir() throws IOException {
+    try (Stream<Path> paths = Files.walk(dir)) {
+      for (Path p : paths.sorted(Comparator.reverseOrder()).toList()) {
+        Files.delete(p);
+      }
+    }
+  }
+
+  @Test
+  public void missThenHit() throws IOException {
+    var cache = new BytecodeCache(dir, 1024 * 1024);
+    String key = BytecodeCache.key(Map.of("Foo", "class Foo {}"), List.of());
+
+    assertFalse(cache.get(key).isPresent());
+
+    cache.put(key, Map.of("Foo", new byte[] { 1, 2, 3 }, "Foo$Bar", new byte[] { 4 }));
+    Map<String, byte[]> classes = cache.get(key).orElseThrow();
+    assertEquals(2, classes.size());
+    assertArrayEquals(new byte[] { 1, 2, 3 }, classes.get("Foo"));
+    assertArrayEquals(new byte[] { 4 }, classes.get("Foo$Bar"));
+  }
+
+  @Test
+  public void keyDependsOnSourcesAndOptions() {
+    String key = BytecodeCache.key(Map.of("Foo", "class Foo {}"), List.of());
+    assertEquals(key, BytecodeCache.key(Map.of("Foo", "class Foo {}"), List.of()));
+    assertNotEquals(key, BytecodeCache.key(Map.of("Foo", "class Foo { }"), List.of()));
+    assertNotEquals(key, BytecodeCache.key(Map.of("Foo", "class Foo {}"), List.of("-g:none")));
+    assertNotEquals(key, BytecodeCache.key(Map.of("Foo", "class Foo {}", "Bar", "class Bar {}"), List.of()));
+  }
+
+  @Test
+  public void keyDependsOnClasspath() throws IOException {
+    Path jar = Files.write(dir.resolve("lib.jar"), new byte[] { 1 });
+    List<String> options = List.of("-cp", jar.toString());
+    String key = BytecodeCache.key(Map.of("Foo", "class Foo {}"), options);
+    assertEquals(key, BytecodeCache.key(Map.of("Foo", "class Foo {}"), options));
+
+    Files.write(jar, new byte[] { 1, 2 });
+    assertNotEquals(key, BytecodeCache.key(Map.of("Foo", "class Foo {}"), options));
+  }
+
+  @Test
+  public void compilerUsesCache() throws IOException {
+    var cache = new BytecodeCache(dir, 1024 * 1024);
+    String source = "public class Foo { public int f() { return 42; } }";
+
+    var first = new InMemoryJavaCompiler(List.of(), cache);
+    first.addSource("Foo", source);
+    assertTrue(first.compileCode("Foo"));
+
+    var key = BytecodeCache.key(Map.of("Foo", source), List.of());
+    assertArrayEquals(first.getBytecodes("Foo"), cache.get(key).orElseThrow().get("Foo"));
+
+    var second = new InMemoryJavaCompiler(List.of(), cache);
+    second.addSource("Foo", source);
+    assertTrue(second.compileCode("Foo"));
+    assertArrayEquals(first.getBytecodes("Foo"), second.getBytecodes("Foo"));
+  }
+}